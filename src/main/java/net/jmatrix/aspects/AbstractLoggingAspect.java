@@ -1,8 +1,6 @@
 package net.jmatrix.aspects;
 
-import java.lang.reflect.Method;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Formatter;
 import java.util.List;
 import java.util.regex.Matcher;
@@ -32,26 +30,12 @@ public abstract class AbstractLoggingAspect
 
    protected boolean hasLogAnnotation(ProceedingJoinPoint thisJoinPoint)
    {
-      Signature sig = thisJoinPoint.getStaticPart().getSignature();
-      if (sig instanceof MethodSignature) {
-         // this must be a call or execution join point
-         Method method = ((MethodSignature)sig).getMethod();
-         Logged loggedAnnotation = method.getAnnotation(Logged.class);
-         if (loggedAnnotation != null) return true;
-      }
-      return false;
+      return JoinPointInfo.get(thisJoinPoint.getStaticPart()).logged != null;
    }
 
    protected boolean hasPerfTrackedAnnotation(ProceedingJoinPoint thisJoinPoint)
    {
-      Signature sig = thisJoinPoint.getStaticPart().getSignature();
-      if (sig instanceof MethodSignature) {
-         // this must be a call or execution join point
-         Method method = ((MethodSignature)sig).getMethod();
-         PerfTracked perfTrackedAnnotation = method.getAnnotation(PerfTracked.class);
-         if (perfTrackedAnnotation != null) return true;
-      }
-      return false;
+      return JoinPointInfo.get(thisJoinPoint.getStaticPart()).perfTracked != null;
    }
 
    protected String[] getParamNames(ProceedingJoinPoint thisJoinPoint)
@@ -74,46 +58,8 @@ public abstract class AbstractLoggingAspect
     */
    protected String constructMethodSignature(ProceedingJoinPoint thisJoinPoint, String paramNames)
    {
-      String methodName;
-      String paramString = "";
-      methodName = thisJoinPoint.getSignature().toShortString();
-      methodName = methodName.substring(0,methodName.indexOf('(')+1);
-      String[] params = (paramNames==null?"":paramNames).split(", *",-1);
-      String seperator = "";
-      int i = 0;
-      for (Object arg : thisJoinPoint.getArgs())
-      {
-         String paramSpec;
-         if (i < params.length && !StringUtil.empty(paramSpec = params[i].trim()))
-         {
-            String[] paramOptions = Arrays.copyOf(paramSpec.split(" *: *",3),3);
-            String paramName = paramOptions[0];
-            int maxLength = 256;
-            String lengthOption = paramOptions[1];
-            if (!StringUtil.empty(lengthOption)) {
-               try {
-                  maxLength = Integer.parseInt(lengthOption);
-               } catch (Exception ex) {
-                  System.out.println ("Error parsing max length from token '"+lengthOption+"'"+ex.toString());
-               }
-            }
-            String compactOption = paramOptions[2];
-            boolean compact = true;
-            if (!StringUtil.empty(compactOption))
-            {
-               compact = Boolean.parseBoolean(compactOption);
-            }
-            
-            arg = DebugUtils.debugString(arg, 0, maxLength, compact);
-
-            paramString = paramString + seperator + paramName +"="+arg;
-         }
-         seperator = ", ";
-         i++;
-      }
-      methodName = methodName + paramString + ")";
-      //System.out.println(methodName);
-      return methodName;
+      String prefix = JoinPointInfo.get(thisJoinPoint.getStaticPart()).signaturePrefix;
+      return new SignatureFormat(prefix, null, paramNames).format(thisJoinPoint.getArgs());
    }
    
    /**
@@ -126,14 +72,31 @@ public abstract class AbstractLoggingAspect
     */
    protected String formatMethodSignature(ProceedingJoinPoint thisJoinPoint, String format)
    {
-      String methodName;
-      String paramString = "";
-      methodName = thisJoinPoint.getSignature().toShortString();
-      methodName = methodName.substring(0,methodName.indexOf('(')+1);
-      paramString = format(format, thisJoinPoint.getArgs());
-      methodName = methodName + paramString + ")";
-      //System.out.println(methodName);
-      return methodName;
+      String prefix = JoinPointInfo.get(thisJoinPoint.getStaticPart()).signaturePrefix;
+      return prefix + format(format, thisJoinPoint.getArgs()) + ")";
+   }
+
+   /**
+    * <code>formatSignature</code> formats the method signature with format if
+    * given, otherwise with the deprecated paramNames.
+    */
+   protected String formatSignature(ProceedingJoinPoint thisJoinPoint, String format, String paramNames)
+   {
+      if (StringUtil.empty(format))
+      {
+         // Still support old-style paramNames
+         return constructMethodSignature(thisJoinPoint, paramNames);
+      }
+      return formatMethodSignature(thisJoinPoint, format);
+   }
+   
+   /**
+    * <code>getMethodName</code> returns the short method name, eg "Class.method",
+    * the portion of a formatted method signature before the '('. 
+    */
+   protected String getMethodName(ProceedingJoinPoint thisJoinPoint)
+   {
+      return JoinPointInfo.get(thisJoinPoint.getStaticPart()).methodName;
    }
 
    public static String format(String format, Object arg)
@@ -159,6 +122,61 @@ public abstract class AbstractLoggingAspect
     * @return
     */
    public static String format(String format, Object[] args)
+   {
+      try
+      {
+         if (StringUtil.empty(format))
+         {
+            return "";
+         }
+         // Each distinct format is parsed once, see FormatPlan.
+         return format(FormatPlan.get(format), args);
+      }
+      catch (Throwable e)
+      {
+         log.error("Error formatting args with format String: "+format,e);
+         try
+         {
+            return format+": "+args;
+         }
+         catch (Throwable e1)
+         {
+            return format;
+         }
+      }
+   }
+
+   /** Formats args with a compiled format, a null plan formats as "". */
+   static String format(FormatPlan plan, Object[] args)
+   {
+      if (plan == null)
+      {
+         return "";
+      }
+      try
+      {
+         return plan.format(args);
+      }
+      catch (Throwable e)
+      {
+         log.error("Error formatting args with format String: "+plan.format,e);
+         try
+         {
+            return plan.format+": "+args;
+         }
+         catch (Throwable e1)
+         {
+            return plan.format;
+         }
+      }
+   }
+
+   /**
+    * <code>formatWithFormatter</code> is equivalent to {@link #format(String, Object[])}
+    * but re-writes the format string and formats it with {@link Formatter} on 
+    * every call.
+    */
+   public static String formatWithFormatter(String format, Object[] args)
    {
       try
       {
@@ -0,0 +1,39 @@
+package net.jmatrix.aspects;
+
+import org.aspectj.lang.ProceedingJoinPoint;
+
+/**
+ * <code>DeferredSignature</code> captures a join point and its format so the
+ * method signature is only formatted, by {@link #toString()}, when a log
+ * statement or PerfTrack tree actually displays it.  Formatting may serialize
+ * every argument to JSON, which is wasted work when DEBUG is off or the 
+ * PerfTrack tree is under its threshold.
+ * 
+ * Arguments are formatted as they are at the time of rendering.  A tree
+ * that is exported or retained has its labels rendered by the thread that
+ * completes it, before it is handed off (see PerfTrack.completeRoot()), so
+ * they show the arguments as they were when the tree completed and the
+ * join point is not kept reachable by queued or retained trees.
+ */
+final class DeferredSignature
+{
+   final SignatureFormat format;
+   final ProceedingJoinPoint thisJoinPoint;
+   String signature;
+
+   DeferredSignature(SignatureFormat format, ProceedingJoinPoint thisJoinPoint)
+   {
+      this.format = format;
+      this.thisJoinPoint = thisJoinPoint;
+   }
+
+   @Override
+   public String toString()
+   {
+      if (signature == null)
+      {
+         signature = format.format(thisJoinPoint.getArgs());
+      }
+      return signature;
+   }
+}
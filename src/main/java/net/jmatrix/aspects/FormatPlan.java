@@ -0,0 +1,358 @@
+package net.jmatrix.aspects;
+
+import java.text.DecimalFormatSymbols;
+import java.util.ArrayList;
+import java.util.Formattable;
+import java.util.Formatter;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Matcher;
+
+import net.jmatrix.utils.ClassLogFactory;
+import net.jmatrix.utils.DebugUtils;
+
+import org.slf4j.Logger;
+
+/**
+ * FormatPlan is a format string accepted by
+ * {@link AbstractLoggingAspect#format(String, Object[])} compiled once into
+ * literal segments and conversion ops.  Formatting with a plan produces the
+ * same text as {@link AbstractLoggingAspect#formatWithFormatter(String, Object[])}
+ * but does no regex matching, and only uses {@link Formatter} for conversions
+ * other than plain %s and %d.
+ *
+ * Format strings the plan can't reproduce exactly (eg date/time conversions,
+ * upper case conversions, or invalid specs) compile to a plan that delegates
+ * to formatWithFormatter, so errors are reported exactly as before.
+ *
+ * Plans are immutable and cached by format string, since annotation formats
+ * are constants.
+ */
+final class FormatPlan
+{
+   private static final Logger log = ClassLogFactory.getLog();
+
+   /** Formats beyond this many are compiled but not cached. */
+   static final int MAX_CACHED = 1024;
+   /** Buffers that grow beyond this are not kept for reuse. */
+   static final int MAX_RETAINED_CAPACITY = 16*1024;
+
+   static final String LINE_SEPARATOR = System.lineSeparator();
+   static final String FLAGS = "-#+ 0,(";
+
+   static final ConcurrentMap<String, FormatPlan> plans = new ConcurrentHashMap<String, FormatPlan>();
+
+   /** Whether Formatter would print plain ASCII digits for %d. */
+   static final boolean ASCII_DIGITS =
+      DecimalFormatSymbols.getInstance(Locale.getDefault(Locale.Category.FORMAT)).getZeroDigit() == '0';
+
+   static final ThreadLocal<Buffer> buffers = new ThreadLocal<Buffer>() {
+      protected Buffer initialValue() {
+         return new Buffer();
+      }
+   };
+
+   final String format;
+   /** literals[i] precedes ops[i], literals[ops.length] is the trailing text. */
+   final String literals[];
+   final Op ops[];
+   /** true if this format is handled by formatWithFormatter */
+   final boolean legacy;
+
+   FormatPlan(String format, String literals[], Op ops[], boolean legacy)
+   {
+      this.format = format;
+      this.literals = literals;
+      this.ops = ops;
+      this.legacy = legacy;
+   }
+
+   /** Returns the cached plan for format, compiling it the first time. */
+   static FormatPlan get(String format)
+   {
+      FormatPlan plan = plans.get(format);
+      if (plan == null)
+      {
+         try
+         {
+            plan = compile(format);
+         }
+         catch (RuntimeException ex)
+         {
+            // eg an index too large for an int, let Formatter report it
+            plan = legacy(format);
+         }
+         if (plans.size() < MAX_CACHED)
+         {
+            FormatPlan existing = plans.putIfAbsent(format, plan);
+            if (existing != null) plan = existing;
+         }
+      }
+      return plan;
+   }
+
+   /**
+    * Compiles format, resolving argument indexes the same way
+    * formatWithFormatter does.
+    */
+   static FormatPlan compile(String format)
+   {
+      List<String> literals = new ArrayList<String>();
+      List<Op> ops = new ArrayList<Op>();
+      Matcher matcher = AbstractLoggingAspect.pattern.matcher(format);
+      int previousIndex = -1;
+      int unspecifiedIndex = 0;
+      int j = 0;
+      while (matcher.find())
+      {
+         String literal = literal(format.substring(j, matcher.start()));
+         if (literal == null) return legacy(format);
+         literals.add(literal);
+
+         int index;
+         String indexSpecifier = matcher.group(1);
+         if (indexSpecifier == null)
+         {
+            index = unspecifiedIndex;
+            unspecifiedIndex++;
+         }
+         else if (indexSpecifier.equals("<"))
+         {
+            index = previousIndex;
+         }
+         else
+         {
+            index = Integer.parseInt(matcher.group(2))-1;
+         }
+
+         String spec = matcher.group(3);
+         char conversion = spec.charAt(spec.length()-1);
+         if (conversion == 't')
+         {
+            // The date/time suffix is outside the matched spec.
+            return legacy(format);
+         }
+         ops.add(new Op(index, conversion, spec.substring(0, spec.length()-1)));
+
+         j = matcher.end();
+         previousIndex = index;
+      }
+      String literal = literal(format.substring(j));
+      if (literal == null) return legacy(format);
+      literals.add(literal);
+
+      return new FormatPlan(format, literals.toArray(new String[literals.size()]),
+                            ops.toArray(new Op[ops.size()]), false);
+   }
+
+   static FormatPlan legacy(String format)
+   {
+      return new FormatPlan(format, null, null, true);
+   }
+
+   /**
+    * Returns literal text as Formatter would print it, or null if it
+    * contains a '%' other than %n.
+    */
+   static String literal(String s)
+   {
+      if (s.indexOf('%') < 0) return s;
+      StringBuilder sb = new StringBuilder(s.length()+8);
+      for (int i = 0; i < s.length(); i++)
+      {
+         char c = s.charAt(i);
+         if (c != '%')
+         {
+            sb.append(c);
+         }
+         else if (i+1 < s.length() && s.charAt(i+1) == 'n')
+         {
+            sb.append(LINE_SEPARATOR);
+            i++;
+         }
+         else
+         {
+            return null;
+         }
+      }
+      return sb.toString();
+   }
+
+   /** Formats args with this plan. */
+   String format(Object[] args)
+   {
+      if (legacy)
+      {
+         return AbstractLoggingAspect.formatWithFormatter(format, args);
+      }
+
+      Buffer buffer = buffers.get();
+      if (buffer.inUse)
+      {
+         // Formatting an argument (eg toString()) formatted something else.
+         StringBuilder sb = new StringBuilder();
+         formatTo(sb, args);
+         return sb.toString();
+      }
+
+      buffer.inUse = true;
+      StringBuilder sb = buffer.sb;
+      try
+      {
+         sb.setLength(0);
+         formatTo(sb, args);
+         return sb.toString();
+      }
+      finally
+      {
+         buffer.inUse = false;
+         if (sb.capacity() > MAX_RETAINED_CAPACITY)
+         {
+            buffer.sb = new StringBuilder(Buffer.INITIAL_CAPACITY);
+         }
+      }
+   }
+
+   /** Appends args formatted with this plan to sb. */
+   void formatTo(StringBuilder sb, Object[] args)
+   {
+      if (legacy)
+      {
+         sb.append(AbstractLoggingAspect.formatWithFormatter(format, args));
+         return;
+      }
+      for (int i = 0; i < ops.length; i++)
+      {
+         sb.append(literals[i]);
+         Op op = ops[i];
+         if (op.index < args.length)
+         {
+            op.append(sb, args[op.index]);
+         }
+         else
+         {
+            log.warn("Index: "+op.index+" is beyond the end of the argument array of length "+args.length+
+                     " at:\n"+DebugUtils.stackString(new Exception()));
+         }
+      }
+      sb.append(literals[ops.length]);
+   }
+
+   /** One conversion, eg %2$-10s, with its argument index resolved. */
+   static final class Op
+   {
+      final int index;
+      final char conversion;
+      /** flags, width and precision, eg "-10" */
+      final String body;
+      /** true if body is empty or is '-' with a width, which append handles */
+      final boolean simple;
+      final boolean leftJustify;
+      final int width;
+      final int precision;
+      /** Formatter spec used for anything else, eg "%-10s" */
+      final String stringSpec;
+      final String spec;
+
+      Op(int index, char conversion, String body)
+      {
+         this.index = index;
+         this.conversion = conversion;
+         this.body = body;
+
+         int i = 0;
+         while (i < body.length() && FLAGS.indexOf(body.charAt(i)) >= 0) i++;
+         String flags = body.substring(0, i);
+         int w = -1;
+         int p = -1;
+         int dot = body.indexOf('.', i);
+         if (dot < 0)
+         {
+            if (i < body.length()) w = Integer.parseInt(body.substring(i));
+         }
+         else
+         {
+            if (i < dot) w = Integer.parseInt(body.substring(i, dot));
+            p = Integer.parseInt(body.substring(dot+1));
+         }
+         width = w;
+         precision = p;
+         leftJustify = flags.equals("-");
+         simple = flags.length() == 0 || (leftJustify && width >= 0);
+         stringSpec = "%"+body+"s";
+         spec = "%"+body+conversion;
+      }
+
+      void append(StringBuilder sb, Object arg)
+      {
+         switch (conversion)
+         {
+            case 'J':
+               appendString(sb, AbstractLoggingAspect.jsonDebug(arg, true));
+               return;
+            case 'j':
+               appendString(sb, AbstractLoggingAspect.jsonDebug(arg, false));
+               return;
+            case 'D':
+               appendString(sb, DebugUtils.debugString(arg));
+               return;
+            case 'd':
+               if (!(arg instanceof Number))
+               {
+                  appendString(sb, DebugUtils.debugString(arg, 0, DebugUtils.MAX_LENGTH, true));
+                  return;
+               }
+               if (body.length() == 0 && ASCII_DIGITS &&
+                   (arg instanceof Integer || arg instanceof Long ||
+                    arg instanceof Short || arg instanceof Byte))
+               {
+                  sb.append(((Number)arg).longValue());
+                  return;
+               }
+               break;
+            case 's':
+               if (!(arg instanceof Formattable))
+               {
+                  appendString(sb, String.valueOf(arg));
+                  return;
+               }
+               break;
+         }
+         new Formatter(sb).format(spec, arg);
+      }
+
+      /** Appends s as %s with this op's flags, width and precision. */
+      void appendString(StringBuilder sb, String s)
+      {
+         if (!simple)
+         {
+            new Formatter(sb).format(stringSpec, s);
+            return;
+         }
+         if (precision >= 0 && precision < s.length())
+         {
+            s = s.substring(0, precision);
+         }
+         int pad = width - s.length();
+         if (pad > 0 && !leftJustify) appendSpaces(sb, pad);
+         sb.append(s);
+         if (pad > 0 && leftJustify) appendSpaces(sb, pad);
+      }
+
+      static void appendSpaces(StringBuilder sb, int n)
+      {
+         for (int i = 0; i < n; i++) sb.append(' ');
+      }
+   }
+
+   /** A thread's reusable output buffer. */
+   static final class Buffer
+   {
+      static final int INITIAL_CAPACITY = 256;
+
+      StringBuilder sb = new StringBuilder(INITIAL_CAPACITY);
+      boolean inUse;
+   }
+}
@@ -0,0 +1,90 @@
+package net.jmatrix.aspects;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import net.jmatrix.annotations.Logged;
+import net.jmatrix.annotations.PerfTracked;
+import net.jmatrix.utils.ClassLogFactory;
+import net.jmatrix.utils.StringUtil;
+
+import org.aspectj.lang.JoinPoint;
+import org.aspectj.lang.Signature;
+import org.aspectj.lang.reflect.MethodSignature;
+import org.slf4j.Logger;
+
+/**
+ * <code>JoinPointInfo</code> holds everything the aspects need to know about
+ * an advised method that does not change from call to call: its name, the
+ * logger of its class, its {@link Logged} and {@link PerfTracked} annotations
+ * and their parsed formats.
+ *
+ * It is built the first time a join point is reached and cached by the join
+ * point's static part, so the advice itself does no reflection or string
+ * parsing.
+ */
+final class JoinPointInfo
+{
+   static final ConcurrentMap<JoinPoint.StaticPart, JoinPointInfo> cache =
+      new ConcurrentHashMap<JoinPoint.StaticPart, JoinPointInfo>();
+
+   /** Short method name, eg "Class.method" */
+   final String methodName;
+   /** The signature up to and including the '(', eg "Class.method(" */
+   final String signaturePrefix;
+   final Logger log;
+
+   final Logged logged;
+   final SignatureFormat loggedSignature;
+   final FormatPlan loggedResult;
+
+   final PerfTracked perfTracked;
+   final SignatureFormat perfTrackedSignature;
+   final FormatPlan perfTrackedResult;
+
+   JoinPointInfo(JoinPoint.StaticPart staticPart)
+   {
+      Signature sig = staticPart.getSignature();
+      String shortString = sig.toShortString();
+      int paren = shortString.indexOf('(');
+      methodName = paren < 0 ? shortString : shortString.substring(0, paren);
+      signaturePrefix = shortString.substring(0, paren+1);
+      log = ClassLogFactory.getLog(sig.getDeclaringType());
+
+      Logged l = null;
+      PerfTracked p = null;
+      if (sig instanceof MethodSignature) {
+         // this must be a call or execution join point
+         Method method = ((MethodSignature)sig).getMethod();
+         l = method.getAnnotation(Logged.class);
+         p = method.getAnnotation(PerfTracked.class);
+      }
+
+      logged = l;
+      loggedSignature = l == null ? null : new SignatureFormat(signaturePrefix, l.format(), l.paramNames());
+      loggedResult = l == null ? null : plan(l.result());
+
+      perfTracked = p;
+      perfTrackedSignature = p == null ? null : new SignatureFormat(signaturePrefix, p.format(), p.paramNames());
+      perfTrackedResult = p == null ? null : plan(p.result());
+   }
+
+   /** Returns the info for a join point, building it on first use. */
+   static JoinPointInfo get(JoinPoint.StaticPart staticPart)
+   {
+      JoinPointInfo info = cache.get(staticPart);
+      if (info == null)
+      {
+         info = new JoinPointInfo(staticPart);
+         JoinPointInfo existing = cache.putIfAbsent(staticPart, info);
+         if (existing != null) info = existing;
+      }
+      return info;
+   }
+
+   static FormatPlan plan(String format)
+   {
+      return StringUtil.empty(format) ? null : FormatPlan.get(format);
+   }
+}
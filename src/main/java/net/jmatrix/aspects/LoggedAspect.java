@@ -1,9 +1,7 @@
 package net.jmatrix.aspects;
 
 import net.jmatrix.annotations.Logged;
-import net.jmatrix.utils.ClassLogFactory;
 import net.jmatrix.utils.ExceptionUtils;
-import net.jmatrix.utils.StringUtil;
 
 import org.aspectj.lang.ProceedingJoinPoint;
 import org.aspectj.lang.annotation.Around;
@@ -20,27 +18,24 @@ public class LoggedAspect extends AbstractLoggingAspect
    @Around("loggedCall() && @annotation(logged)")
    public Object logged (ProceedingJoinPoint thisJoinPoint, Logged logged) throws Throwable
    {
-      Logger log = ClassLogFactory.getLog(1);
+      // The method name, logger and parsed formats are resolved once per
+      // advised method, see JoinPointInfo.
+      JoinPointInfo info = JoinPointInfo.get(thisJoinPoint.getStaticPart());
+      Logger log = info.log;
 
-      String methodSignature = "<unknown>";
-      String methodName = "<unknown>";
+      String methodName = info.methodName;
       try
       {
-         if (StringUtil.empty(logged.format()))
+         // Arguments and results are only formatted when DEBUG is enabled.
+         if (log.isDebugEnabled())
          {
-            // Still support old-style paramNames
-            methodSignature = constructMethodSignature(thisJoinPoint, logged.paramNames());
+            log.debug("Entering "+info.loggedSignature.format(thisJoinPoint.getArgs()));
          }
-         else
+         Object result = thisJoinPoint.proceed();
+         if (log.isDebugEnabled() && info.perfTracked == null)
          {
-            methodSignature = formatMethodSignature(thisJoinPoint, logged.format());
+            log.debug("Exiting  "+methodName+"="+format(info.loggedResult, new Object[] {result}));
          }
-         methodName = methodSignature.substring(0,methodSignature.indexOf('('));
-               
-         log.debug("Entering "+methodSignature);
-         Object result = thisJoinPoint.proceed();
-         boolean hasPerTrackedAnnotation = hasPerfTrackedAnnotation(thisJoinPoint);
-         if (!hasPerTrackedAnnotation) log.debug("Exiting  "+methodName+"="+format(logged.result(), new Object[] {result}));
          return result;
       }
       catch (Throwable e)
@@ -1,9 +1,8 @@
 package net.jmatrix.aspects;
 
-import net.jmatrix.utils.ClassLogFactory;
 import net.jmatrix.utils.ExceptionUtils;
 import net.jmatrix.utils.PerfTrack;
-import net.jmatrix.utils.StringUtil;
+import net.jmatrix.utils.PerfTrackThresholds;
 
 import org.aspectj.lang.ProceedingJoinPoint;
 import org.aspectj.lang.annotation.Around;
@@ -15,7 +14,6 @@ import org.slf4j.Logger;
 public class PerfTrackAspect extends AbstractLoggingAspect
 {
    static final String[] emptyArray = new String[] {};
-   private long threshold = 0;
 
    @Pointcut("execution(@net.jmatrix.annotations.PerfTracked * *(..))")
    void perfTrackedCall() {}
@@ -23,74 +21,67 @@ public class PerfTrackAspect extends AbstractLoggingAspect
    @Around("perfTrackedCall() && @annotation(perfTrack)")
    public Object perfTrack (ProceedingJoinPoint thisJoinPoint, net.jmatrix.annotations.PerfTracked perfTrack) throws Throwable
    {
-      // Acquire the Log on each invocation rather than using a static member to 
-      // hold the logger since we want the logger of our caller which will differ
-      // from invocation to invocation. This will mean that the logger name that
-      // appears in the log entry will be the class name annotated with
-      // @PerfTracked and not PerfTracked itself.
-      Logger log = ClassLogFactory.getLog(this.getClass().getName());
-      String methodSignature = "<unknown>";
-      String methodName = "<unknown>";
-      long start=System.currentTimeMillis();
-      threshold = perfTrack.threshold();
-      String key = methodName;
+      // The logger is that of the class annotated with @PerfTracked and not
+      // PerfTracked itself.  It, the method name and the parsed formats are
+      // resolved once per advised method, see JoinPointInfo.
+      JoinPointInfo info = JoinPointInfo.get(thisJoinPoint.getStaticPart());
+      Logger log = info.log;
+      String methodName = info.methodName;
+      // The aspect is a singleton, so per call state must be local.
+      long threshold = PerfTrackThresholds.resolve(methodName, perfTrack.threshold());
       try
       {
-         if (StringUtil.empty(perfTrack.format()))
+         // The signature is only formatted if it is logged, or if this is
+         // a verbose item in a PerfTrack tree that gets displayed.  Trees
+         // left out by PerfTrackSampler are never displayed.
+         DeferredSignature methodSignature = null;
+         if ((perfTrack.verbose() && !PerfTrack.isUnsampled()) || log.isDebugEnabled())
          {
-            // Still support old-style paramNames
-            methodSignature = constructMethodSignature(thisJoinPoint, perfTrack.paramNames());
+            methodSignature = new DeferredSignature(info.perfTrackedSignature, thisJoinPoint);
          }
-         else
-         {
-            methodSignature = formatMethodSignature(thisJoinPoint, perfTrack.format());
-         }
-         
-         methodName = methodSignature.substring(0,methodSignature.indexOf('('));
-         
-         key = perfTrack.verbose() ? methodSignature : methodName;
-               
+
          if (threshold >= 0) {
-            PerfTrack.start(key,methodName,threshold);
+            PerfTrack.start(methodName,methodName,threshold,perfTrack.verbose() ? methodSignature : null);
+         }
+
+         if (log.isDebugEnabled() && info.logged == null)
+         {
+            log.debug("Entering "+methodSignature);
          }
-         
-         boolean hasLogAnnotation = hasLogAnnotation(thisJoinPoint);
-         if (!hasLogAnnotation) log.debug("Entering "+methodSignature);
          Object result = thisJoinPoint.proceed();
          long et = -1;
-         if (threshold >= 0) et = PerfTrack.stop(key);
-         log.debug("Exiting["+(threshold>0?et:"")+"ms] "+methodName+"="+format(perfTrack.result(), new Object[] {result}));
+         if (threshold >= 0) et = PerfTrack.stop(methodName);
+         if (log.isDebugEnabled())
+         {
+            log.debug("Exiting["+(threshold>0?et:"")+"ms] "+methodName+"="+format(info.perfTrackedResult, new Object[] {result}));
+         }
          return result;
       }
       catch (Throwable e)
       {
-         NullPointerException npe = ExceptionUtils.findExceptionInStack(e, NullPointerException.class);
          long et = -1;
-         if (threshold >= 0) et = PerfTrack.stop(key,methodSignature,e);
-         if (npe == null)
+         if (threshold >= 0) et = PerfTrack.stop(methodName,methodName,e);
+         if (log.isDebugEnabled())
          {
-            log.debug("Failed["+(threshold>0?et:"")+"ms] "+methodName+" Exception="+e);
-         }
-         else
-         {
-            log.debug("Failed["+(threshold>0?et:"")+"ms] "+methodName,e);
+            NullPointerException npe = ExceptionUtils.findExceptionInStack(e, NullPointerException.class);
+            if (npe == null)
+            {
+               log.debug("Failed["+(threshold>0?et:"")+"ms] "+methodName+" Exception="+e);
+            }
+            else
+            {
+               log.debug("Failed["+(threshold>0?et:"")+"ms] "+methodName,e);
+            }
          }
          throw e;
       }
       finally
       {
-         if (threshold >= 0) 
+         if (threshold >= 0)
          {
-            long end=System.currentTimeMillis();
-            long et=end-start;
-            if (PerfTrack.isCurrentRootAndComplete()) 
-            {
-               if (et > threshold )
-               {
-                  log.debug("PerfTrack:\n"+PerfTrack.toString(0));
-               }
-               PerfTrack.clear();
-            }
+            // exported or logged if the root is over threshold (or kept by
+            // PerfTrackRetention when that is enabled), then cleared
+            PerfTrack.completeRoot(log);
          }
       }
    }
@@ -0,0 +1,89 @@
+package net.jmatrix.aspects;
+
+import java.util.Arrays;
+
+import net.jmatrix.utils.DebugUtils;
+import net.jmatrix.utils.StringUtil;
+
+/**
+ * <code>SignatureFormat</code> is a parsed method signature format: the
+ * "Class.method(" prefix plus either a compiled {@link FormatPlan} for the
+ * format annotation parameter, or the param specs of the deprecated
+ * paramNames parameter, eg "name:50:false, other".
+ */
+final class SignatureFormat
+{
+   static final int DEFAULT_MAX_LENGTH = 256;
+
+   final String prefix;
+   /** the compiled format, or null if paramNames is used */
+   final FormatPlan plan;
+   /** param names by argument position, null if the argument is not shown */
+   final String names[];
+   final int maxLengths[];
+   final boolean compact[];
+
+   SignatureFormat(String prefix, String format, String paramNames)
+   {
+      this.prefix = prefix;
+      if (!StringUtil.empty(format))
+      {
+         plan = FormatPlan.get(format);
+         names = null;
+         maxLengths = null;
+         compact = null;
+         return;
+      }
+
+      plan = null;
+      String[] params = (paramNames==null?"":paramNames).split(", *",-1);
+      names = new String[params.length];
+      maxLengths = new int[params.length];
+      compact = new boolean[params.length];
+      for (int i = 0; i < params.length; i++)
+      {
+         String paramSpec = params[i].trim();
+         if (StringUtil.empty(paramSpec)) continue;
+
+         String[] paramOptions = Arrays.copyOf(paramSpec.split(" *: *",3),3);
+         names[i] = paramOptions[0];
+         maxLengths[i] = DEFAULT_MAX_LENGTH;
+         String lengthOption = paramOptions[1];
+         if (!StringUtil.empty(lengthOption)) {
+            try {
+               maxLengths[i] = Integer.parseInt(lengthOption);
+            } catch (Exception ex) {
+               System.out.println ("Error parsing max length from token '"+lengthOption+"'"+ex.toString());
+            }
+         }
+         String compactOption = paramOptions[2];
+         compact[i] = true;
+         if (!StringUtil.empty(compactOption))
+         {
+            compact[i] = Boolean.parseBoolean(compactOption);
+         }
+      }
+   }
+
+   /** Returns the method signature with args formatted. */
+   String format(Object[] args)
+   {
+      if (plan != null)
+      {
+         return prefix + AbstractLoggingAspect.format(plan, args) + ")";
+      }
+
+      StringBuilder sb = new StringBuilder(prefix);
+      String seperator = "";
+      for (int i = 0; i < args.length; i++)
+      {
+         if (i < names.length && names[i] != null)
+         {
+            sb.append(seperator).append(names[i]).append('=')
+              .append(DebugUtils.debugString(args[i], 0, maxLengths[i], compact[i]));
+         }
+         seperator = ", ";
+      }
+      return sb.append(')').toString();
+   }
+}
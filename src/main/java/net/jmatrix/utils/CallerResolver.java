@@ -0,0 +1,131 @@
+package net.jmatrix.utils;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.Iterator;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+/**
+ * CallerResolver walks the current thread's stack from the caller outwards
+ * and hands each frame's class and method name to a FrameVisitor until the
+ * visitor returns a result.
+ *
+ * On Java 9+ this uses java.lang.StackWalker, which materializes frames
+ * lazily, so a walk that stops after a few frames costs a few frames rather
+ * than a full stack trace.  StackWalker is reached through MethodHandles
+ * since this library is still built for Java 8, where the walk falls back
+ * to Throwable.getStackTrace().
+ *
+ * Frames belonging to CallerResolver itself are never passed to the visitor.
+ */
+final class CallerResolver {
+   static final String THIS_CLASS=CallerResolver.class.getName();
+
+   /** StackWalker.walk(Function) bound to a walker, null on Java 8. */
+   static final MethodHandle WALK;
+   /** StackWalker.StackFrame.getClassName() */
+   static final MethodHandle GET_CLASS_NAME;
+   /** StackWalker.StackFrame.getMethodName() */
+   static final MethodHandle GET_METHOD_NAME;
+
+   static {
+      MethodHandle walk=null;
+      MethodHandle getClassName=null;
+      MethodHandle getMethodName=null;
+      try {
+         MethodHandles.Lookup lookup=MethodHandles.lookup();
+         Class<?> walkerClass=Class.forName("java.lang.StackWalker");
+         Class<?> frameClass=Class.forName("java.lang.StackWalker$StackFrame");
+         Object walker=walkerClass.getMethod("getInstance").invoke(null);
+         walk=lookup.findVirtual(walkerClass, "walk",
+                                 MethodType.methodType(Object.class, Function.class))
+            .bindTo(walker);
+         getClassName=lookup.findVirtual(frameClass, "getClassName",
+                                         MethodType.methodType(String.class))
+            .asType(MethodType.methodType(String.class, Object.class));
+         getMethodName=lookup.findVirtual(frameClass, "getMethodName",
+                                          MethodType.methodType(String.class))
+            .asType(MethodType.methodType(String.class, Object.class));
+      } catch (Throwable t) {
+         // Java 8 - no StackWalker.
+         walk=null;
+      }
+      WALK=walk;
+      GET_CLASS_NAME=getClassName;
+      GET_METHOD_NAME=getMethodName;
+   }
+
+   /** Visits stack frames, returning non-null ends the walk. */
+   interface FrameVisitor {
+      String visit(String className, String methodName);
+   }
+
+   final FrameVisitor visitor;
+   final Function<Stream<Object>, String> walkFunction;
+
+   /** */
+   CallerResolver(FrameVisitor v) {
+      visitor=v;
+      walkFunction=new Function<Stream<Object>, String>() {
+         public String apply(Stream<Object> frames) {
+            Iterator<Object> i=frames.iterator();
+            try {
+               while (i.hasNext()) {
+                  Object frame=i.next();
+                  String className=(String)GET_CLASS_NAME.invokeExact(frame);
+                  if (className.startsWith(THIS_CLASS))
+                     continue;
+                  String result=visitor.visit(className,
+                                              (String)GET_METHOD_NAME.invokeExact(frame));
+                  if (result != null)
+                     return result;
+               }
+            } catch (RuntimeException ex) {
+               throw ex;
+            } catch (Throwable t) {
+               throw new IllegalStateException("Error walking stack", t);
+            }
+            return null;
+         }
+      };
+   }
+
+   /** Returns the visitor's first non-null result, or null. */
+   String resolve() {
+      if (WALK != null) {
+         try {
+            return (String)(Object)WALK.invokeExact(walkFunction);
+         } catch (RuntimeException ex) {
+            throw ex;
+         } catch (Throwable t) {
+            throw new IllegalStateException("Error walking stack", t);
+         }
+      }
+
+      StackTraceElement stack[]=new Throwable().getStackTrace();
+      for (int i=0; i<stack.length; i++) {
+         String className=stack[i].getClassName();
+         if (className.startsWith(THIS_CLASS))
+            continue;
+         String result=visitor.visit(className, stack[i].getMethodName());
+         if (result != null)
+            return result;
+      }
+      return null;
+   }
+
+   /** 
+    * Walks the stack with a one-off visitor, for visitors that keep state
+    * during the walk and so can't be shared between threads.
+    */
+   static String walk(FrameVisitor visitor) {
+      return new CallerResolver(visitor).resolve();
+   }
+
+   /** */
+   static boolean isStackWalkerAvailable() {
+      return WALK != null;
+   }
+}
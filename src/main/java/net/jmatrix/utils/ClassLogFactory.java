@@ -1,27 +1,83 @@
 package net.jmatrix.utils;
 
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 
-/** */
+/** 
+ * Returns a Logger named for the calling class.  The caller is found with 
+ * a lazy stack walk (see CallerResolver) that stops at the calling frame, 
+ * and Loggers are cached by class name.  Where the class is already known, 
+ * getLog(Class) skips the stack walk and is a single map lookup.
+ */
 public class ClassLogFactory {
+   static final ConcurrentMap<String,Logger> loggers=new ConcurrentHashMap<String,Logger>();
+   
    /** */
    public static final Logger getLog() {
-      String callingClassname=DebugUtils.getCallingClassName(1);
-      Logger log=LoggerFactory.getLogger(callingClassname);
-      return log;
+      return getLogByName(getCallingClassName(0));
    }
 
    public static final Logger getLog(int i) {
-      String callingClassname=DebugUtils.getCallingClassName(1+i);
-      Logger log=LoggerFactory.getLogger(callingClassname);
-      return log;
+      return getLogByName(getCallingClassName(i));
    }
    
    public static final Logger getLog(String calledClassName) {
-      String callingClassname=DebugUtils.getCallingClassName(calledClassName);
-      Logger log=LoggerFactory.getLogger(callingClassname);
+      return getLogByName(getCallingClassName(calledClassName));
+   }
+   
+   /** */
+   public static final Logger getLog(Class<?> c) {
+      return getLogByName(c.getName());
+   }
+   
+   static Logger getLogByName(String className) {
+      if (className == null)
+         className=Logger.ROOT_LOGGER_NAME;
+      Logger log=loggers.get(className);
+      if (log == null) {
+         log=LoggerFactory.getLogger(className);
+         Logger existing=loggers.putIfAbsent(className, log);
+         if (existing != null)
+            log=existing;
+      }
       return log;
    }
+   
+   /** 
+    * Returns the class name depth frames above the caller of ClassLogFactory,
+    * see DebugUtils.getCallingClassName(int).
+    */
+   static String getCallingClassName(final int depth) {
+      return CallerResolver.walk(new CallerResolver.FrameVisitor() {
+         int remaining=depth;
+         public String visit(String className, String methodName) {
+            if (className.equals(ClassLogFactory.class.getName()))
+               return null;
+            if (remaining-- > 0)
+               return null;
+            return className;
+         }
+      });
+   }
+   
+   /** 
+    * Returns the class name of the first frame after the frames of 
+    * calledClassName, see DebugUtils.getCallingClassName(String).
+    */
+   static String getCallingClassName(final String calledClassName) {
+      return CallerResolver.walk(new CallerResolver.FrameVisitor() {
+         boolean found=false;
+         public String visit(String className, String methodName) {
+            if (className.equals(calledClassName))
+               found=true;
+            else if (found)
+               return className;
+            return null;
+         }
+      });
+   }
 }
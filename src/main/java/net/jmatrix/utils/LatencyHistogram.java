@@ -0,0 +1,113 @@
+package net.jmatrix.utils;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A concurrent, log-bucketed latency histogram in the style of HdrHistogram.
+ *
+ * Values (nanoseconds) are bucketed by their power of two, and each power
+ * of two is split into 16 linear sub-buckets, so any recorded value is
+ * reported with a relative error of at most 1/16 (6.25%).  Values from 0ns
+ * to about 4.8 hours are tracked, anything larger lands in the top bucket.
+ *
+ * Each bucket is a LongAdder which is only created the first time a value
+ * falls into it, so recording from many threads at once does not contend
+ * and memory is proportional to the number of distinct buckets used.
+ */
+public final class LatencyHistogram {
+   static final int SUB_BITS=4;
+   static final int SUB_COUNT=1<<SUB_BITS;
+   static final int MAX_EXPONENT=43;
+   static final int BUCKET_COUNT=(MAX_EXPONENT-SUB_BITS+2)*SUB_COUNT;
+
+   final AtomicReferenceArray<LongAdder> buckets=
+      new AtomicReferenceArray<LongAdder>(BUCKET_COUNT);
+
+   /** */
+   public void record(long nanos) {
+      int i=bucketIndex(nanos);
+      LongAdder bucket=buckets.get(i);
+      if (bucket == null) {
+         buckets.compareAndSet(i, null, new LongAdder());
+         bucket=buckets.get(i);
+      }
+      bucket.increment();
+   }
+
+   /** Returns the number of values recorded. */
+   public long getCount() {
+      long count=0;
+      for (int i=0; i<BUCKET_COUNT; i++) {
+         LongAdder bucket=buckets.get(i);
+         if (bucket != null)
+            count+=bucket.sum();
+      }
+      return count;
+   }
+
+   /** Returns the number of values recorded in bucket i. */
+   public long getBucketCount(int i) {
+      LongAdder bucket=buckets.get(i);
+      return bucket == null ? 0 : bucket.sum();
+   }
+
+   /**
+    * Returns the value at the given percentile (0-100), as the upper bound
+    * of the bucket that contains it.  Returns 0 if nothing has been recorded.
+    */
+   public long getValueAtPercentile(double percentile) {
+      long counts[]=new long[BUCKET_COUNT];
+      long total=0;
+      for (int i=0; i<BUCKET_COUNT; i++) {
+         counts[i]=getBucketCount(i);
+         total+=counts[i];
+      }
+      if (total == 0)
+         return 0;
+
+      long target=(long)Math.ceil(total*Math.min(percentile, 100.0)/100.0);
+      if (target < 1) target=1;
+      long seen=0;
+      for (int i=0; i<BUCKET_COUNT; i++) {
+         seen+=counts[i];
+         if (seen >= target)
+            return bucketUpperBound(i);
+      }
+      return bucketUpperBound(BUCKET_COUNT-1);
+   }
+
+   /** */
+   public void reset() {
+      for (int i=0; i<BUCKET_COUNT; i++) {
+         buckets.set(i, null);
+      }
+   }
+
+   /** Returns the bucket that a value in nanoseconds is counted in. */
+   static int bucketIndex(long nanos) {
+      if (nanos < SUB_COUNT)
+         return nanos < 0 ? 0 : (int)nanos;
+      int exponent=63-Long.numberOfLeadingZeros(nanos);
+      if (exponent > MAX_EXPONENT)
+         return BUCKET_COUNT-1;
+      int sub=(int)(nanos >>> (exponent-SUB_BITS)) & (SUB_COUNT-1);
+      return (exponent-SUB_BITS+1)*SUB_COUNT+sub;
+   }
+
+   /** Returns the smallest value counted in bucket i. */
+   static long bucketLowerBound(int i) {
+      if (i < SUB_COUNT)
+         return i;
+      int exponent=i/SUB_COUNT+SUB_BITS-1;
+      int sub=i%SUB_COUNT;
+      return ((long)(SUB_COUNT+sub)) << (exponent-SUB_BITS);
+   }
+
+   /** Returns the largest value counted in bucket i. */
+   static long bucketUpperBound(int i) {
+      if (i >= BUCKET_COUNT-1)
+         return Long.MAX_VALUE;
+      return bucketLowerBound(i+1)-1;
+   }
+}
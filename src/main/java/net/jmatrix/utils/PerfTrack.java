@@ -1,11 +1,18 @@
 package net.jmatrix.utils;
 
+import java.io.IOException;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.LongAdder;
 
 import org.slf4j.Logger;
 
@@ -32,11 +39,86 @@ public final class PerfTrack {
    private static boolean debug = Boolean.valueOf(System.getProperty("debug", "false"));
    static Logger log=ClassLogFactory.getLog();
    
-   // FIXME: 
-   //   - Change to InheritableThreadLocal??
-   //   - Ensure thread safety - I think its threadsafe now.
+   static final long NANOS_PER_MILLI=1000000L;
+   
+   /**
+    * When true, durations in the PerfTrack tree output are shown with 
+    * microsecond precision (eg "0.412ms") rather than whole milliseconds.
+    * Elapsed times are always measured with the monotonic System.nanoTime()
+    * clock, this only affects how they are rendered.
+    */
+   static volatile boolean nanoTiming=
+      Boolean.valueOf(System.getProperty("perftrack.nanos", "false"));
+   
+   /**
+    * When true, Items and their child lists are taken from a per-thread 
+    * pool and returned to it by clear(), so a steady state request tree 
+    * allocates nothing.  Items must not be referenced after clear() when 
+    * recycling is enabled.
+    */
+   static volatile boolean recycling=
+      Boolean.valueOf(System.getProperty("perftrack.recycle", "false"));
+   
+   /**
+    * Limits on the size of one tree, so a loop (or recursion) inside a
+    * request cannot grow it without bound.  Once a tree has maxNodes items,
+    * or a child would be at depth maxDepth, further children with the same
+    * name under the same parent are merged into one counted item, which is
+    * rendered with its call count, total, min and max.  Items started
+    * below a merged item at maxDepth are only counted.
+    */
+   static volatile int maxNodes=Integer.getInteger("perftrack.maxNodes", 10000);
+   static volatile int maxDepth=Integer.getInteger("perftrack.maxDepth", 100);
+   
+   /** Threshold value meaning "inherit the parent's threshold". */
+   static final long INHERIT_THRESHOLD=Long.MIN_VALUE;
+   
+   /** Threshold, in ms, of items started without one and with no parent. */
+   static volatile long defaultThreshold=Long.getLong("perftrack.threshold", 20);
+   
+   /** Roots started and stopped, their difference is the trees in flight. */
+   static final LongAdder rootsStarted=new LongAdder();
+   static final LongAdder rootsStopped=new LongAdder();
+   
+   // Work handed to other threads is attached to the tree explicitly, see
+   // capture() and PerfTrackExecutors.  An InheritableThreadLocal would
+   // only cover threads created by the request thread, not pooled ones.
    static ThreadLocal<Item> threadLocalCurrent=new ThreadLocal<Item>();
    
+   /** Item names by class name then method name, see getCaller() */
+   static final ConcurrentMap<String,ConcurrentMap<String,String>> callerNames=
+      new ConcurrentHashMap<String,ConcurrentMap<String,String>>();
+   
+   static final CallerResolver callerResolver=new CallerResolver(
+      new CallerResolver.FrameVisitor() {
+         public String visit(String className, String methodName) {
+            if (debug) System.out.println ("getCaller::"+className);
+            if (className.equals(PerfTrack.class.getName()))
+               return null;
+            return getCallerName(className, methodName);
+         }
+      });
+   
+   static ThreadLocal<ItemPool> threadLocalPool=new ThreadLocal<ItemPool>() {
+      protected ItemPool initialValue() {
+         return new ItemPool();
+      }
+   };
+   
+   /** Current while the thread is in a tree PerfTrackSampler left out. */
+   static ThreadLocal<Unsampled> threadLocalUnsampled=new ThreadLocal<Unsampled>() {
+      protected Unsampled initialValue() {
+         return new Unsampled();
+      }
+   };
+
+   static {
+      // the opt-in endpoints aren't reached from the request path, each
+      // starts itself from its own initializer if asked to by property
+      PerfTrackJmx.init();
+      PerfTrackPrometheus.init();
+   }
+   
    /** */
    public static void start(Method m) {
       String s=getMethodString(m);
@@ -51,47 +133,88 @@ public final class PerfTrack {
    
    /** */
    public static void start() {
+      if (enterUnsampled())
+         return;
       String caller = getCaller();
       start(caller,caller, null);
    }
 
    /** */
    public static void start(long threshold) {
+      if (enterUnsampled())
+         return;
       String caller = getCaller();
       start(caller, caller, threshold);
    }
 
    /** */
    public static void start(String name) {
+      if (enterUnsampled())
+         return;
       start(name, getCaller(), null);
    }
 
    /** */
    public static void start(String name, long threshold) {
+      if (enterUnsampled())
+         return;
       start(name, getCaller(), threshold);
    }
 
    /** */
    public static void start(String name, String id) {
-      start(name, id, null);
+      startItem(name, id, INHERIT_THRESHOLD, null);
    }
 
-      /** */
+   /** */
    public static void start(String name, String id, long threshold) {
-      start(name, id, new Long(threshold));
+      startItem(name, id, threshold, null);
+   }
+
+   /**
+    * Starts an item that is displayed using label.toString() rather than
+    * its name.  The label is only converted to a String if the tree is 
+    * rendered, so an expensive description (eg of method arguments) costs
+    * nothing unless it is shown.  The item is still stopped by name.
+    */
+   public static void start(String name, String id, long threshold, Object label) {
+      startItem(name, id, threshold, label);
    }
 
    /** */
    protected static void start(String name, String id, Long threshold) {
+      startItem(name, id, threshold == null ? INHERIT_THRESHOLD : threshold.longValue(), null);
+   }
+
+   /** */
+   static void startItem(String name, String id, long threshold, Object label) {
       if (name == null)
          throw new NullPointerException("Null PerfTrack name.  Cannot perftrack null.");
       
       Item current=threadLocalCurrent.get();
+      if (current instanceof Unsampled) {
+         ((Unsampled)current).nesting++;
+         return;
+      }
+      if (current != null && current.depth >= maxDepth) {
+         // below the deepest merged items, only counted
+         current.hidden++;
+         return;
+      }
+      if (current == null && !PerfTrackSampler.sample(name)) {
+         Unsampled unsampled=threadLocalUnsampled.get();
+         unsampled.nesting=1;
+         threadLocalCurrent.set(unsampled);
+         return;
+      }
             
+      if (current == null)
+         rootsStarted.increment();
       current=addChild(name, id, current, threshold);  // new sub-item
    
       current.start();
       current.id = id;
+      current.label = label;
       
       threadLocalCurrent.set(current);
 
@@ -102,14 +225,66 @@ public final class PerfTrack {
       }
    }
 
+   /**
+    * Starts an item that may be stopped from any thread, eg when a 
+    * CompletableFuture or I/O callback completes, through the returned Span.
+    * The item is added to the current tree (or is a new root if there isn't
+    * one) but is not made current, so start/stop on this thread carry on
+    * as if it wasn't there.
+    */
+   public static Span startAsync(String name) {
+      return startAsync(name, name, INHERIT_THRESHOLD);
+   }
+   
+   /** */
+   public static Span startAsync(String name, long threshold) {
+      return startAsync(name, name, threshold);
+   }
+   
+   /** */
+   public static Span startAsync(String name, String id, long threshold) {
+      if (name == null)
+         throw new NullPointerException("Null PerfTrack name.  Cannot perftrack null.");
+      
+      Item parent=threadLocalCurrent.get();
+      if (parent instanceof Unsampled || 
+          (parent == null && !PerfTrackSampler.sample(name)))
+         return Span.UNSAMPLED;
+      Item item;
+      if (parent == null) {
+         rootsStarted.increment();
+         item=new Item(name, null);
+      } else {
+         // the span is stopped, and adds its counters to the parent, from
+         // other threads, so the parent's children and counters must be
+         // read under its lock
+         parent.share();
+         item=new Item(name, parent);
+      }
+      if (threshold != INHERIT_THRESHOLD) {
+         item.threshold = threshold;
+      } else if (parent != null) {
+         item.threshold = parent.threshold;
+      }
+      item.id=id;
+      // no thread owns a span, so none stops or clears it through the stack
+      item.shared=true;
+      item.start();
+      return new Span(item);
+   }
+   
    /** */
    public static long stop() {
+      if (exitUnsampled())
+         return -1;
       String name = getCaller();
       return stop(name, name, null);
    }
    
    /** */
    public static long stop(Throwable t) {
+      if (exitUnsampled())
+         return -1;
       String name = getCaller();
       return stop(name, name, t);
    }
@@ -140,14 +315,29 @@ public final class PerfTrack {
 
       Item current = threadLocalCurrent.get();
 
-      if (current == null)
+      if (current instanceof Unsampled)
+      {
+         exitUnsampled();
+      }
+      else if (current != null && current.hidden > 0)
+      {
+         // started below maxDepth, see startItem()
+         current.hidden--;
+      }
+      else if (current == null)
       {
          log.warn("Stopping, but current is null??");
       }
       else
       {
          Item lastChild = null;
-         if (current.getName() != null && current.getName().equals(name))
+         if (!current.isOwnedByCurrentThread())
+         {
+            // current is the item this thread's work was attached to
+            log.warn("Stopping '" +name+ "' but '"+name+"' was not started on "+
+                     "this thread. current is '"+current.getName() + "'");
+         }
+         else if (current.getName() != null && current.getName().equals(name))
          {
             et = current.stop();
 
@@ -158,7 +348,10 @@ public final class PerfTrack {
                          " complete: "+isCurrentRootAndComplete());
             }
 
-            current.throwable = t;
+            // a merged item keeps the failure of any of its calls
+            if (t != null || !current.merged)
+               current.throwable = t;
+            itemStopped(current);
 
             Item parent = current.getParent();
             if (parent != null)
@@ -186,7 +379,7 @@ public final class PerfTrack {
             // stopping item that is not current. likely because
             // someone forgot to stop a PerfTrack with try/finally
             // or other programming error/typo.
-            Item ancestor = current.findAncestor(name);
+            Item ancestor = current.findOwnedAncestor(name);
             // If we find the target item above us in the stack, stop that
             // item and all intervening items.
             if (ancestor != null)
@@ -196,6 +389,7 @@ public final class PerfTrack {
                   log.warn("Stopping '" + name + "' but current is '" +
                            current.getName() + "'");
                   et = current.stop();
+                  itemStopped(current);
 
                   // fixme: remove - verbose PerfTrack Debug.
                   if (log.isTraceEnabled())
@@ -220,10 +414,353 @@ public final class PerfTrack {
       return et;
    }
    
+   /**
+    * Runs task as a PerfTrack item named name.  The item is stopped however
+    * task completes, and if it is the root of a new tree the tree is then
+    * finished with completeRoot() and removed from the thread, so nothing
+    * is left behind for a later request on the thread to inherit.
+    *
+    * Scopes nest like start/stop, and toString() works within them.  A
+    * completed tree left on the thread by a missed clear() is discarded 
+    * rather than having the new root added to it.  Scopes suit short lived
+    * (eg virtual) threads, which would otherwise each keep a tree until
+    * they end.  Use capture() to carry the scope into forked tasks.
+    */
+   public static <T> T call(String name, long threshold, Callable<T> task) throws Exception {
+      boolean root=enterScope();
+      startItem(name, name, threshold, null);
+      Throwable failure=null;
+      try {
+         return task.call();
+      } catch (Exception ex) {
+         failure=ex;
+         throw ex;
+      } catch (Error er) {
+         failure=er;
+         throw er;
+      } finally {
+         exitScope(name, failure, root);
+      }
+   }
+   
+   /** As call(), for a Runnable. */
+   public static void run(String name, long threshold, Runnable task) {
+      boolean root=enterScope();
+      startItem(name, name, threshold, null);
+      Throwable failure=null;
+      try {
+         task.run();
+      } catch (RuntimeException ex) {
+         failure=ex;
+         throw ex;
+      } catch (Error er) {
+         failure=er;
+         throw er;
+      } finally {
+         exitScope(name, failure, root);
+      }
+   }
+   
+   /** 
+    * Adds delta to counter on the current item.  When the item stops its
+    * counters are added to its parent's and to PerfTrackStats, see
+    * PerfTrackCounters.  Does nothing if there is no current tree.
+    */
+   public static void add(PerfTrackCounters.Counter counter, long delta) {
+      Item current=threadLocalCurrent.get();
+      if (current == null || current instanceof Unsampled || counter.slot < 0)
+         return;
+      current.addCounter(counter.slot, delta);
+   }
+   
+   /** Adds delta to the named counter, see add(Counter, long). */
+   public static void add(String counter, long delta) {
+      add(PerfTrackCounters.counter(counter), delta);
+   }
+   
+   /** 
+    * Sets tag on the current item, replacing any value it had.  Does
+    * nothing if there is no current tree.
+    */
+   public static void tag(PerfTrackCounters.Tag tag, String value) {
+      Item current=threadLocalCurrent.get();
+      if (current == null || current instanceof Unsampled || tag.slot < 0)
+         return;
+      current.setTag(tag.slot, value);
+   }
+   
+   /** Sets the named tag, see tag(Tag, String). */
+   public static void tag(String tag, String value) {
+      tag(PerfTrackCounters.tag(tag), value);
+   }
+   
+   /** 
+    * True while the current tree was left out by PerfTrackSampler, so
+    * callers can skip work (eg building labels) that would be thrown away.
+    */
+   public static boolean isUnsampled() {
+      return threadLocalCurrent.get() instanceof Unsampled;
+   }
+   
+   /** In an unsampled tree, counts a start() and returns true. */
+   static boolean enterUnsampled() {
+      Item current=threadLocalCurrent.get();
+      if (current instanceof Unsampled) {
+         ((Unsampled)current).nesting++;
+         return true;
+      }
+      return false;
+   }
+   
+   /** 
+    * In an unsampled tree, counts a stop() and returns true.  The thread is
+    * left with no tree once its root is stopped.
+    */
+   static boolean exitUnsampled() {
+      Item current=threadLocalCurrent.get();
+      if (!(current instanceof Unsampled))
+         return false;
+      if (--((Unsampled)current).nesting <= 0) {
+         if (recycling)
+            threadLocalCurrent.set(null);
+         else
+            threadLocalCurrent.remove();
+      }
+      return true;
+   }
+   
+   /** Returns true if a scope entered now starts a new tree. */
+   static boolean enterScope() {
+      Item current=threadLocalCurrent.get();
+      if (current == null)
+         return true;
+      if (current instanceof Unsampled)
+         return false;
+      if (current.parent == null && current.isDone() && current.isOwnedByCurrentThread()) {
+         // a finished tree nobody cleared
+         clear();
+         return true;
+      }
+      return false;
+   }
+   
+   static void exitScope(String name, Throwable failure, boolean root) {
+      stop(name, name, failure);
+      if (root) {
+         completeRoot(log);
+         // remove() rather than clear(), which may keep the entry
+         threadLocalCurrent.remove();
+      }
+   }
+   
+   /**
+    * Finishes the current tree as completeRoot(Logger, boolean) does,
+    * dumping it if its root is over threshold as measured by the root
+    * itself, so the decision agrees with what the tree renders.
+    */
+   public static boolean completeRoot(Logger log) {
+      Item current=threadLocalCurrent.get();
+      return completeRoot(log, current != null && current.isOverThreshold());
+   }
+
+   /**
+    * Finishes the current tree if its root has been stopped.  If dump is
+    * true the tree is passed to PerfTrackExporter, with log, when exporting
+    * is enabled and a sink would write it, and otherwise logged to log at
+    * DEBUG.  The tree is then cleared.
+    * Returns false, doing nothing, if the current tree is not complete.
+    *
+    * Every completed tree, dumped or not, is written to the installed
+    * PerfTrackRecorder if there is one, without formatting its labels.  When PerfTrackRetention is enabled
+    * it decides whether the tree is dumped, in place of dump, and keeps
+    * the trees it dumps.  Trees that are exported or kept have their labels
+    * formatted first, on this thread, see resolveLabels().
+    */
+   public static boolean completeRoot(Logger log, boolean dump) {
+      if (!isCurrentRootAndComplete())
+         return false;
+      if (finishRoot(threadLocalCurrent.get(), log, dump)) {
+         // kept or queued, so never recycled
+         detach();
+      }
+      clear();
+      return true;
+   }
+   
+   /**
+    * Records, keeps, exports or logs a completed tree, see completeRoot().
+    * Returns true if the tree was kept or queued for export, so other
+    * threads may now read it.
+    */
+   static boolean finishRoot(Item root, Logger log, boolean dump) {
+      boolean retain=false;
+      if (PerfTrackRetention.isEnabled())
+         dump=retain=PerfTrackRetention.shouldRetain(root);
+      boolean exporting=dump && PerfTrackExporter.isEnabled();
+      boolean export=exporting && PerfTrackExporter.hasSink(log);
+      if (retain || export)
+         resolveLabels(root);
+      // after resolveLabels(), so the recorder only finds the labels of
+      // trees that are shown already formatted
+      PerfTrackRecorder.recordRoot(root);
+      if (retain)
+         PerfTrackRetention.retain(root);
+      if (export) {
+         // rendered and written on the exporter thread
+         PerfTrackExporter.export(root, log);
+      } else if (dump && !exporting && log.isDebugEnabled()) {
+         log.debug("PerfTrack:\n"+toString(root, 0));
+      }
+      return retain || export;
+   }
+   
+   /**
+    * Replaces each label in the tree with its String form.  Called on the
+    * thread completing a tree before it is exported or retained, so that a
+    * deferred label (eg a method signature from the aspects) is formatted
+    * with its arguments as they were when the tree completed, rather than
+    * later and concurrently on another thread, and the tree no longer keeps
+    * those arguments reachable.
+    */
+   static void resolveLabels(Item item) {
+      Object label=item.label;
+      if (label != null && !(label instanceof String))
+         item.label=label.toString();
+      List<Item> children=item.childList();
+      for (int i=0; i<children.size(); i++) {
+         resolveLabels(children.get(i));
+      }
+   }
+   
+   /** Called once for each item as it is stopped. */
+   static void itemStopped(Item item) {
+      if (item.parent == null)
+         rootsStopped.increment();
+      long counters[]=item.rollUpCounters();
+      PerfTrackStats.record(item.name, item.lastCallNanos(), item.throwable != null, counters);
+      if (item.spanId != 0)
+         PerfTrackJfr.end(item);
+   }
+   
    /** */
    public static void clear() {
       //log.debug("PerfTrack.clear()");
-      threadLocalCurrent.remove();
+      Item current=threadLocalCurrent.get();
+      if (current != null && !current.isOwnedByCurrentThread()) {
+         // attached to another thread's tree, which that thread clears
+         threadLocalCurrent.remove();
+      } else if (current instanceof Unsampled) {
+         ((Unsampled)current).nesting=0;
+         threadLocalCurrent.remove();
+      } else if (recycling) {
+         // set(null) keeps the ThreadLocal entry, remove() would cost
+         // a new entry on the next start()
+         threadLocalCurrent.set(null);
+         if (current != null)
+            threadLocalPool.get().release(current.findRoot());
+      } else {
+         threadLocalCurrent.remove();
+      }
+   }
+   
+   /**
+    * Captures the current item so work done on another thread can be
+    * attached to it, see Context.attach().  Returns a Context with no item
+    * if there is no current tree.
+    *
+    * Once captured, children are added to the item under its lock, so 
+    * several threads may add to it at once.  A tree with a captured item
+    * is never recycled, since other threads may still hold its items.
+    */
+   public static Context capture() {
+      Item current=threadLocalCurrent.get();
+      if (current == null || current instanceof Unsampled)
+         return Context.EMPTY;
+      current.share();
+      return new Context(current);
+   }
+   
+   /**
+    * Removes the current tree from this thread and returns its root, or null
+    * if there is no tree.  Unlike clear(), the tree is never recycled, so it
+    * can be handed to another thread, eg {@link PerfTrackExporter}.
+    */
+   public static Item detach() {
+      Item current=threadLocalCurrent.get();
+      if (current instanceof Unsampled) {
+         clear();
+         return null;
+      }
+      if (recycling)
+         threadLocalCurrent.set(null);
+      else
+         threadLocalCurrent.remove();
+      return current == null ? null : current.findRoot();
+   }
+   
+   /** 
+    * Sets the threshold, in milliseconds, given to items started without
+    * one and with no parent to inherit one from.  Items already started
+    * keep theirs.
+    */
+   public static void setDefaultThreshold(long threshold) {
+      defaultThreshold=threshold;
+   }
+   
+   /** */
+   public static long getDefaultThreshold() {
+      return defaultThreshold;
+   }
+   
+   /** 
+    * Returns the number of trees, across all threads, whose root has been
+    * started but not yet stopped.  Unsampled trees are not counted.
+    */
+   public static long getInFlightCount() {
+      return rootsStarted.sum()-rootsStopped.sum();
+   }
+   
+   /** Sets the number of items a tree may have before children are merged. */
+   public static void setMaxNodes(int max) {
+      maxNodes=max;
+   }
+   
+   /** */
+   public static int getMaxNodes() {
+      return maxNodes;
+   }
+   
+   /** Sets the depth (the root is 0) at which children are merged. */
+   public static void setMaxDepth(int max) {
+      maxDepth=max;
+   }
+   
+   /** */
+   public static int getMaxDepth() {
+      return maxDepth;
+   }
+   
+   /** 
+    * Enables or disables recycling of Items through a per-thread pool.
+    * See the recycling field.
+    */
+   public static void setRecycling(boolean b) {
+      recycling=b;
+   }
+   
+   /** */
+   public static boolean isRecycling() {
+      return recycling;
+   }
+   
+   /** Enables or disables sub-millisecond rendering of PerfTrack trees. */
+   public static void setNanoTiming(boolean b) {
+      nanoTiming=b;
+   }
+   
+   /** */
+   public static boolean isNanoTiming() {
+      return nanoTiming;
    }
    
    /** */
@@ -231,7 +768,7 @@ public final class PerfTrack {
       Item current=threadLocalCurrent.get();
       if (current != null ) {
          if (current.getParent() == null) {
-            if (current.isDone()) {
+            if (current.isDone() && current.isOwnedByCurrentThread()) {
                return true;
             }
          }
@@ -244,24 +781,55 @@ public final class PerfTrack {
 
    public static String toString(int depth) {
       Item current=threadLocalCurrent.get();
+      if (current instanceof Unsampled)
+         return "PerfTrack: not sampled";
       if (current != null ) {
-         Map<String,Collection<Item>> residueMap = new HashMap<String,Collection<Item>>();
          if (current.getParent() == null) {
             // this is the root.
-            return current.toString(depth, residueMap);
+            return toString(current, depth);
          } else {
             log.warn("toString() called, but current is not root.  Unfinished tree items.");
-            Item root=current.findRoot();
-            return root.toString(depth, residueMap);
+            return toString(current.findRoot(), depth);
          }
       }
       else 
          return "PerfTrack: no data?";
    }
+
+   /** Renders the tree rooted at root, as toString(int) does for the current tree. */
+   public static String toString(Item root, int depth) {
+      if (root == null)
+         return "PerfTrack: no data?";
+      StringBuilder sb=new StringBuilder();
+      try {
+         write(root, depth, sb);
+      } catch (IOException ex) {
+         // not thrown by StringBuilder
+      }
+      return sb.toString();
+   }
+   
+   /** 
+    * Writes the tree rooted at root to out, in the format of 
+    * toString(Item, int), without building it as a String first.
+    */
+   public static void write(Item root, int depth, Appendable out) throws IOException {
+      if (root == null)
+         out.append("PerfTrack: no data?");
+      else
+         new Renderer(out).render(root, depth, 0);
+   }
    
+   /**
+    * Returns the item name for the first caller outside of PerfTrack.  The
+    * stack is walked lazily (StackWalker on Java 9+) and stops at that frame,
+    * and names are cached so repeated calls from one call site do no string
+    * building.
+    */
    protected static String getCaller()
    {
-      return getCaller(Thread.currentThread().getStackTrace());
+      String caller=callerResolver.resolve();
+      return caller == null ? "<unknown>" : caller;
    }
    
    protected static String getCaller(StackTraceElement[] stackTrace)
@@ -273,30 +841,57 @@ public final class PerfTrack {
          if (debug) System.out.println (i+"::"+className);
          if (!className.equals(PerfTrack.class.getName()))
          {
-            className=className.substring(className.lastIndexOf(".")+1);
-            return createItemName(className,e.getMethodName()); 
+            return getCallerName(className, e.getMethodName()); 
          }
       }
       return "<unknown>";
    }
+   
+   /** Returns the cached, interned item name for a class and method. */
+   static String getCallerName(String className, String methodName)
+   {
+      ConcurrentMap<String,String> methods=callerNames.get(className);
+      if (methods == null) {
+         methods=new ConcurrentHashMap<String,String>();
+         ConcurrentMap<String,String> existing=callerNames.putIfAbsent(className, methods);
+         if (existing != null)
+            methods=existing;
+      }
+      String name=methods.get(methodName);
+      if (name == null) {
+         String simpleName=className.substring(className.lastIndexOf(".")+1);
+         name=createItemName(simpleName, methodName).intern();
+         methods.putIfAbsent(methodName, name);
+      }
+      return name;
+   }
 
    protected static String createItemName(String className, String methodName)
    {
       return  className + "." + methodName;
    }
 
-   protected static Item addChild(String name, String id, Item current, Long threshold) {
+   protected static Item addChild(String name, String id, Item current, long threshold) {
+      boolean merge=current != null && 
+         (current.depth+1 >= maxDepth || current.root.nodes >= maxNodes);
+      if (merge) {
+         Item merged=current.findMergedChild(name);
+         if (merged != null)
+            return merged;
+      }
       Item child = null;
-      if (current == null) {
-         child=new Item(name, null);
+      if (recycling) {
+         child=threadLocalPool.get().acquire();
+         child.init(name, current);
       } else {
          child=new Item(name, current);
       }
-      if (threshold != null) {
-         child.threshold = threshold.longValue();
+      if (threshold != INHERIT_THRESHOLD) {
+         child.threshold = threshold;
       } else if (current != null) {
          child.threshold = current.threshold;
       }
+      child.merged=merge;
       return child;
    }
 
@@ -306,15 +901,22 @@ public final class PerfTrack {
       return createItemName(classname,m.getName());
    }
 
-   /**  */
-   static class Item {
+   /** 
+    * One timed operation in a PerfTrack tree.  Items are owned by the thread
+    * that started them until the tree is detached.
+    */
+   public static class Item {
       String id;
       String name;
+      /** When set, label.toString() is displayed in place of name. */
+      Object label;
       Item parent=null;
       long start=0;
       long stop=0;
       long et=0;
-      long threshold = 20;
+      long startNanos=0;
+      long etNanos=0;
+      long threshold = defaultThreshold;
       
       /**
        * throwable stores any Throwable thrown by the method corresponding to this item
@@ -323,16 +925,142 @@ public final class PerfTrack {
 
       List<Item> children=new ArrayList<Item>();
       
+      /** 
+       * Set once the item is captured for other threads, after which 
+       * children are added and read, and counters, tags and (for a span) 
+       * the elapsed time and throwable are written and read, under the
+       * item's lock.
+       */
+      volatile boolean shared;
+      /** The thread that started the item, set when it is shared. */
+      Thread owner;
+      /** 
+       * Set on the root once any item in its tree is shared.  Other threads
+       * may then reach any item in the tree, see ItemPool.release().
+       */
+      boolean sharedTree;
+      
+      /** 
+       * Non zero while a flight recorder event is open for the item, see
+       * PerfTrackJfr.  The event is kept for reuse when the item is pooled.
+       */
+      long spanId;
+      Object flightEvent;
+      
+      /** The root of this item's tree, and the item's depth in it. */
+      Item root;
+      int depth;
+      /** Items in the tree, kept on the root.  Approximate if shared. */
+      int nodes;
+      /** Calls started below this item past maxDepth and not yet stopped. */
+      int hidden;
+      
+      /** 
+       * Set for an item that stands in for all calls of its name under its
+       * parent once the tree's limits are reached.  etNanos is the total of
+       * the calls.
+       */
+      boolean merged;
+      long count;
+      long minNanos;
+      long maxNanos;
+      long lastNanos;
+      
+      /** 
+       * Counter and tag values by PerfTrackCounters slot, allocated on first
+       * use.  Counters include those of children that have stopped.
+       */
+      long counters[];
+      String tags[];
+      /** For a merged item, counters at the last stop, and gained in the last call. */
+      long rolledUp[];
+      long lastCounters[];
+      
       /** */
       public Item(String n, Item p) {
+         init(n, p);
+      }
+      
+      /** Used by ItemPool, init() must be called before use. */
+      Item() {
+      }
+      
+      void init(String n, Item p) {
          name=n;
          parent=p;
+         if (p == null) {
+            root=this;
+            nodes=1;
+         } else {
+            root=p.root;
+            depth=p.depth+1;
+            root.nodes++;
+         }
          if (p != null)
          {
-            p.children.add(this);
+            if (p.shared)
+            {
+               synchronized (p) {
+                  p.children.add(this);
+               }
+            }
+            else
+            {
+               p.children.add(this);
+            }
          }
       }
       
+      /** Marks this item as shared with other threads, see capture(). */
+      void share() {
+         if (!shared) {
+            owner=Thread.currentThread();
+            shared=true;
+            root.sharedTree=true;
+         }
+      }
+      
+      /** False if this item was captured from another thread. */
+      boolean isOwnedByCurrentThread() {
+         return !shared || owner == Thread.currentThread();
+      }
+      
+      /** The children, copied under the lock if other threads may add to them. */
+      List<Item> childList() {
+         if (!shared)
+            return children;
+         synchronized (this) {
+            return new ArrayList<Item>(children);
+         }
+      }
+      
+      /** Returns this Item to its newly constructed state. */
+      void reset() {
+         id=null;
+         name=null;
+         label=null;
+         parent=null;
+         start=stop=et=0;
+         startNanos=etNanos=0;
+         threshold=defaultThreshold;
+         throwable=null;
+         shared=sharedTree=false;
+         owner=null;
+         spanId=0;
+         root=null;
+         depth=nodes=hidden=0;
+         merged=false;
+         count=minNanos=maxNanos=lastNanos=0;
+         // counter slots are kept, so a recycled item does not allocate them
+         if (counters != null)
+            Arrays.fill(counters, 0);
+         if (tags != null)
+            Arrays.fill(tags, null);
+         if (rolledUp != null)
+            Arrays.fill(rolledUp, 0);
+         children.clear();
+      }
+      
       public Item findAncestor(String x)
       {
          if (x == null) return null;
@@ -344,18 +1072,191 @@ public final class PerfTrack {
          return ancestor;
       }
       
+      /** 
+       * Like findAncestor(), but doesn't look past an item captured from
+       * another thread, since that thread stops its own items.
+       */
+      Item findOwnedAncestor(String x)
+      {
+         if (x == null) return null;
+         Item ancestor = this;
+         while (ancestor != null && ancestor.isOwnedByCurrentThread())
+         {
+            if (x.equals(ancestor.getName()))
+               return ancestor;
+            ancestor = ancestor.parent;
+         }
+         return null;
+      }
+      
       public Item getLastChild()
       {
+         List<Item> children = childList();
          if (children != null && children.size() > 0) {
             return children.get(children.size()-1);
          }
          return null;
       }
 
-      public void start() {start=System.currentTimeMillis();}
-      public long stop() {stop=System.currentTimeMillis(); return (et=stop-start);}
-      public List<Item> getChildren() {return children;}
+      /** 
+       * start/stop record wall clock times for display, but the elapsed
+       * time is measured with System.nanoTime() which is monotonic and
+       * not subject to NTP clock adjustments.
+       */
+      public void start() {
+         if (!merged || count == 0)
+            start=System.currentTimeMillis();
+         startNanos=System.nanoTime();
+         if (PerfTrackJfr.active)
+            PerfTrackJfr.begin(this);
+      }
+      
+      /** Returns elapsed time in milliseconds. */
+      public long stop() {
+         stop=System.currentTimeMillis(); 
+         long elapsed=System.nanoTime()-startNanos;
+         if (merged) {
+            if (count == 0 || elapsed < minNanos) minNanos=elapsed;
+            if (elapsed > maxNanos) maxNanos=elapsed;
+            count++;
+            lastNanos=elapsed;
+            etNanos+=elapsed;
+            et=etNanos/NANOS_PER_MILLI;
+            return elapsed/NANOS_PER_MILLI;
+         }
+         etNanos=elapsed;
+         return (et=etNanos/NANOS_PER_MILLI);
+      }
+      
+      /** The elapsed time of the latest call, for a merged item. */
+      long lastCallNanos() {
+         return merged ? lastNanos : etNanos;
+      }
+      
+      void addCounter(int slot, long delta) {
+         if (shared) {
+            synchronized (this) {
+               counterSlots()[slot]+=delta;
+            }
+         } else {
+            counterSlots()[slot]+=delta;
+         }
+      }
+      
+      long[] counterSlots() {
+         if (counters == null)
+            counters=new long[PerfTrackCounters.MAX_COUNTERS];
+         return counters;
+      }
+      
+      void setTag(int slot, String value) {
+         if (shared) {
+            synchronized (this) {
+               tagSlots()[slot]=value;
+            }
+         } else {
+            tagSlots()[slot]=value;
+         }
+      }
+      
+      String[] tagSlots() {
+         if (tags == null)
+            tags=new String[PerfTrackCounters.MAX_TAGS];
+         return tags;
+      }
+      
+      /** 
+       * Called as the item stops.  Adds the counters gained in this call to
+       * the parent's, and returns them, or null if there are none.
+       */
+      long[] rollUpCounters() {
+         if (counters == null)
+            return null;
+         long gained[];
+         if (shared) {
+            synchronized (this) {
+               gained=lastCallCounters();
+               if (gained == counters)
+                  gained=gained.clone();
+            }
+         } else {
+            gained=lastCallCounters();
+         }
+         if (parent != null) {
+            for (int i=0; i<gained.length; i++) {
+               if (gained[i] != 0)
+                  parent.addCounter(i, gained[i]);
+            }
+         }
+         return gained;
+      }
+      
+      /** The counters, or for a merged item those gained since it last stopped. */
+      long[] lastCallCounters() {
+         if (!merged)
+            return counters;
+         if (rolledUp == null) {
+            rolledUp=new long[counters.length];
+            lastCounters=new long[counters.length];
+         }
+         for (int i=0; i<counters.length; i++) {
+            lastCounters[i]=counters[i]-rolledUp[i];
+            rolledUp[i]=counters[i];
+         }
+         return lastCounters;
+      }
+      
+      /** Returns the merged child named n, if there is one. */
+      Item findMergedChild(String n) {
+         if (!shared)
+            return scanMergedChildren(n);
+         synchronized (this) {
+            return scanMergedChildren(n);
+         }
+      }
+      
+      Item scanMergedChildren(String n) {
+         // from the end, a loop keeps returning to the latest ones
+         for (int i=children.size()-1; i>=0; i--) {
+            Item child=children.get(i);
+            if (child.merged && n.equals(child.name))
+               return child;
+         }
+         return null;
+      }
+      
+      public String getId() {return id;}
+      public long getStartMillis() {return start;}
+      public long getStopMillis() {return stop;}
+      public long getThreshold() {return threshold;}
+      public long getElapsedMillis() {return et;}
+      public long getElapsedNanos() {return etNanos;}
+      /** True if this item counts several calls, see PerfTrack.maxNodes. */
+      public boolean isMerged() {return merged;}
+      public long getCount() {return merged ? count : 1;}
+      public long getMinNanos() {return merged ? minNanos : etNanos;}
+      public long getMaxNanos() {return merged ? maxNanos : etNanos;}
+      
+      /** Returns the counter's value, including that of stopped children. */
+      public long getCounter(PerfTrackCounters.Counter counter) {
+         long c[]=counters;
+         return c == null || counter.slot < 0 ? 0 : c[counter.slot];
+      }
+      
+      /** Returns the tag's value, or null if it was not set. */
+      public String getTag(PerfTrackCounters.Tag tag) {
+         String t[]=tags;
+         return t == null || tag.slot < 0 ? null : t[tag.slot];
+      }
+      
+      /** */
+      public boolean isOverThreshold() {
+         return etNanos >= threshold*NANOS_PER_MILLI;
+      }
+      /** Returns the children, a copy if the item is shared. */
+      public List<Item> getChildren() {return childList();}
       public String getName() {return name;}
+      public String getDisplayName() {return label == null ? name : label.toString();}
       public Item getParent() {return parent;}
       public Throwable getThrowable()
       {
@@ -365,13 +1266,23 @@ public final class PerfTrack {
       public void setThrowable(Throwable throwable)
       {
          this.throwable = throwable;
+      }
+      
+      /** The throwable's class name, also for trees read by PerfTrackDecoder. */
+      public String getThrowableClassName()
+      {
+         if (throwable == null)
+            return null;
+         if (throwable instanceof PerfTrackDecoder.DecodedThrowable)
+            return ((PerfTrackDecoder.DecodedThrowable)throwable).getClassName();
+         return throwable.getClass().getName();
       }      
       public String toString() {
          return "PTItem("+id+", name="+name+", start="+start+", stop="+stop+", parent="+parent+")";
       }
       
       public boolean hasChildren() {
-         if (children.size() > 0)
+         if (childList().size() > 0)
             return true;
          return false;
       }
@@ -389,61 +1300,417 @@ public final class PerfTrack {
             return parent.findRoot();
       }
       
+      /** 
+       * Renders this item and, if it is shown, its children.  An item under
+       * its threshold is left out if parentResidueItems groups it with other
+       * calls with its id.
+       */
       public String toString(final int depth, Map<String,Collection<Item>> parentResidueItems) {
-         StringBuilder sb=new StringBuilder();
-         String threw = throwable==null?"":"threw ["+throwable.getClass().getSimpleName()+"] ";
-         Map<String,Collection<Item>> residualItems = new HashMap<String,Collection<Item>>(); 
-         if (et >= threshold || parent == null || throwable != null) {
-            pad(depth,sb);
-            sb.append(name+" "+threw+et+"ms\n");
-            if (children.size() > 0) {
-               long unaccounted=et;
-
-               for (Item child: children) {
-                  if (child.et < child.threshold && child.throwable == null){
-                     Collection<Item> items = residualItems.get(child.id);
-                     if (items == null) items = new ArrayList<Item>();
-                     items.add(child);
-                     residualItems.put(child.id, items);            
-                  }                  
+         if (!isShown()) {
+            Collection<Item> residualItem = parentResidueItems.get(id);
+            if (residualItem != null && residualItem.size() != 1)
+               return "";
+         }
+         return PerfTrack.toString(this, depth);
+      }
+      
+      /** 
+       * True if this item is rendered with its children, rather than only
+       * counted in its parent's "* N calls to" line.
+       */
+      boolean isShown() {
+         return isOverThreshold() || parent == null || throwable != null;
+      }
+   }
+   
+   /**
+    * Renders a tree in one pass, writing each line straight to out.  Under
+    * threshold children of an item are grouped by id; a group of one is
+    * shown as a line, larger groups as "* N calls to id" after the
+    * children, in the order the groups first appear.  The group maps and
+    * Groups are reused from one item to the next.
+    *
+    * A shared item (eg a span) may still be changing as the tree is
+    * rendered, so its fields are read under its lock.  Each such item is
+    * consistent, but a tree rendered while spans are still running shows
+    * them as they were at that moment, an unstopped span as 0ms.  Items
+    * started by attached workers are not shared, and should stop before
+    * the tree is rendered (see PerfTrackExecutors).
+    */
+   static final class Renderer {
+      final Appendable out;
+      final StringBuilder number=new StringBuilder(20);
+      /** State of the item being rendered at each level. */
+      final List<Level> levels=new ArrayList<Level>();
+      final List<Group> spare=new ArrayList<Group>();
+      
+      Renderer(Appendable o) {
+         out=o;
+      }
+      
+      /** Renders item, which is shown, and its children. */
+      void render(Item item, int depth, int level) throws IOException {
+         long unaccounted;
+         if (item.shared) {
+            synchronized (item) {
+               appendLine(item, depth);
+               unaccounted=item.etNanos;
+            }
+         } else {
+            appendLine(item, depth);
+            unaccounted=item.etNanos;
+         }
+         List<Item> children=item.childList();
+         if (children.size() == 0)
+            return;
+         
+         Level state=level(level, children.size());
+         Map<String,Group> groups=state.groups;
+         boolean shown[]=state.shown;
+         for (int i=0; i<children.size(); i++) {
+            Item child=children.get(i);
+            long nanos;
+            if (child.shared) {
+               synchronized (child) {
+                  nanos=child.etNanos;
+                  shown[i]=child.isShown();
                }
-
-               for (Item child: children) {
-                  unaccounted=unaccounted-child.et;
-                  sb.append(child.toString(depth+1,residualItems));
+            } else {
+               nanos=child.etNanos;
+               shown[i]=child.isShown();
+            }
+            unaccounted-=nanos;
+            if (!shown[i]) {
+               Group group=groups.get(child.id);
+               if (group == null) {
+                  group=spare.isEmpty() ? new Group() : spare.remove(spare.size()-1);
+                  groups.put(child.id, group);
                }
-
-               for (String tag : residualItems.keySet()) {
-                  Collection<Item> callCollection = residualItems.get(tag);
-                  if (callCollection.size()==1) continue;
-                  long callCollectionDuration = 0;
-                  for(Item item : callCollection) {
-                     callCollectionDuration += item.et;
+               group.count++;
+               group.nanos+=nanos;
+            }
+         }
+         
+         for (int i=0; i<children.size(); i++) {
+            Item child=children.get(i);
+            if (shown[i]) {
+               render(child, depth+1, level+1);
+            } else if (groups.get(child.id).count == 1) {
+               if (child.shared) {
+                  synchronized (child) {
+                     appendLine(child, depth+1);
                   }
-                  pad(depth+1, sb);
-                  int size = callCollection.size();
-                  sb.append("* "+size+" call"+(size==1?"":"s")+" to "+tag+" "+callCollectionDuration+"ms\n");
+               } else {
+                  appendLine(child, depth+1);
                }
-               // unaccounted
-               pad(depth+1, sb);
-               sb.append("Other "+unaccounted+"ms\n");
             }
-         } else {
-            Collection<Item> residualItem = parentResidueItems.get(id);
-            if (residualItem == null || residualItem.size() == 1) {
-               pad(depth,sb);
-               sb.append(name+" "+threw+et+"ms\n");
+         }
+         
+         for (Map.Entry<String,Group> entry:groups.entrySet()) {
+            Group group=entry.getValue();
+            if (group.count > 1) {
+               pad(depth+1);
+               out.append("* ");
+               appendNumber(group.count);
+               out.append(" calls to ").append(String.valueOf(entry.getKey())).append(' ');
+               appendDuration(group.nanos);
             }
+            group.count=0;
+            group.nanos=0;
+            spare.add(group);
          }
-         return sb.toString();
+         groups.clear();
+         
+         pad(depth+1);
+         out.append("Other ");
+         appendDuration(unaccounted);
       }
-
-      protected String pad(int depth, StringBuilder sb)
-      {
+      
+      /** The state for level, with room for children's shown flags. */
+      Level level(int level, int children) {
+         while (levels.size() <= level) {
+            levels.add(new Level());
+         }
+         Level state=levels.get(level);
+         if (state.shown.length < children)
+            state.shown=new boolean[Math.max(children, state.shown.length*2)];
+         return state;
+      }
+      
+      /** Appends an item's line, with its calls for a merged item. */
+      void appendLine(Item item, int depth) throws IOException {
+         pad(depth);
+         out.append(item.getDisplayName()).append(' ');
+         if (item.throwable != null) {
+            out.append("threw [");
+            if (item.throwable instanceof PerfTrackDecoder.DecodedThrowable) {
+               // no class to ask, so cut the package off its name
+               String className=item.getThrowableClassName();
+               out.append(className, className.lastIndexOf('.')+1, className.length());
+            } else {
+               out.append(item.throwable.getClass().getSimpleName());
+            }
+            out.append("] ");
+         }
+         if (item.merged) {
+            out.append('[');
+            appendNumber(item.count);
+            out.append(" calls, min ");
+            appendTime(item.minNanos);
+            out.append(", max ");
+            appendTime(item.maxNanos);
+            out.append("] ");
+         }
+         if (item.counters != null || item.tags != null)
+            appendCounters(item);
+         appendDuration(item.etNanos);
+      }
+      
+      /** Appends "{name=value, ...} " for the item's counters and tags, if any are set. */
+      void appendCounters(Item item) throws IOException {
+         boolean first=true;
+         long counters[]=item.counters;
+         for (int i=0; counters != null && i<counters.length; i++) {
+            if (counters[i] != 0) {
+               out.append(first ? "{" : ", ").append(PerfTrackCounters.getCounter(i).name).append('=');
+               appendNumber(counters[i]);
+               first=false;
+            }
+         }
+         String tags[]=item.tags;
+         for (int i=0; tags != null && i<tags.length; i++) {
+            if (tags[i] != null) {
+               out.append(first ? "{" : ", ").append(PerfTrackCounters.getTag(i).name).append('=');
+               out.append(tags[i]);
+               first=false;
+            }
+         }
+         if (!first)
+            out.append("} ");
+      }
+      
+      /** 
+       * Appends a duration followed by a newline, in whole milliseconds or 
+       * with microsecond precision when nanoTiming is enabled.
+       */
+      void appendDuration(long nanos) throws IOException {
+         appendTime(nanos);
+         out.append('\n');
+      }
+      
+      /** Appends a duration as appendDuration() does, without the newline. */
+      void appendTime(long nanos) throws IOException {
+         if (nanoTiming) {
+            long micros=nanos/1000;
+            if (micros < 0) {
+               out.append('-');
+               micros=-micros;
+            }
+            appendNumber(micros/1000);
+            out.append('.');
+            long frac=micros%1000;
+            if (frac < 100) out.append('0');
+            if (frac < 10) out.append('0');
+            appendNumber(frac);
+         } else {
+            appendNumber(nanos/NANOS_PER_MILLI);
+         }
+         out.append("ms");
+      }
+      
+      void appendNumber(long n) throws IOException {
+         number.setLength(0);
+         number.append(n);
+         out.append(number);
+      }
+      
+      void pad(int depth) throws IOException {
          for (int i=0; i<depth; i++) {
-            sb.append("  ");
+            out.append("  ");
+         }
+      }
+   }
+   
+   /** Groups and shown flags of the children of the item rendered at a level. */
+   static final class Level {
+      final Map<String,Group> groups=new LinkedHashMap<String,Group>();
+      boolean shown[]=new boolean[16];
+   }
+   
+   /** Under threshold siblings with one id. */
+   static final class Group {
+      int count;
+      long nanos;
+   }
+   
+   /**
+    * A captured PerfTrack item, see capture().  Items started on a thread
+    * while the Context is attached become children of the captured item.
+    */
+   public static final class Context {
+      static final Context EMPTY=new Context(null);
+      
+      final Item item;
+      
+      Context(Item i) {
+         item=i;
+      }
+      
+      /** Returns false if nothing was being tracked when this was captured. */
+      public boolean isEmpty() {
+         return item == null;
+      }
+      
+      /** 
+       * Makes the captured item current on this thread until the returned
+       * Scope is closed.
+       */
+      public Scope attach() {
+         Item previous=threadLocalCurrent.get();
+         if (item != null)
+            threadLocalCurrent.set(item);
+         return new Scope(item, previous);
+      }
+   }
+   
+   /**
+    * An item started with startAsync(), which can be stopped from any thread.
+    * Only the first stop() has any effect.
+    */
+   public static final class Span {
+      static final AtomicIntegerFieldUpdater<Span> STOPPED=
+         AtomicIntegerFieldUpdater.newUpdater(Span.class, "stopped");
+      
+      /** Returned in unsampled trees, it has no item and is already stopped. */
+      static final Span UNSAMPLED=new Span(null);
+      static {
+         UNSAMPLED.stopped=1;
+      }
+      
+      final Item item;
+      volatile int stopped;
+      
+      Span(Item i) {
+         item=i;
+      }
+      
+      /** Stops the span, returning elapsed milliseconds or -1 if already stopped. */
+      public long stop() {
+         return stop(null);
+      }
+      
+      /** Stops the span as failed with t. */
+      public long stop(Throwable t) {
+         if (!STOPPED.compareAndSet(this, 0, 1))
+            return -1;
+         
+         // renderers read a shared item's fields under its lock
+         long et;
+         synchronized (item) {
+            et=item.stop();
+            item.throwable=t;
+         }
+         itemStopped(item);
+         
+         if (item.parent == null)
+            rootSpanStopped();
+         return et;
+      }
+      
+      /** A span with no tree is a tree of its own, finished as completeRoot() would. */
+      void rootSpanStopped() {
+         finishRoot(item, log, item.isOverThreshold());
+      }
+      
+      /** */
+      public boolean isStopped() {
+         return stopped != 0;
+      }
+      
+      /** Returns a Context that attaches work, eg a callback, to this span. */
+      public Context context() {
+         return item == null ? Context.EMPTY : new Context(item);
+      }
+      
+      /** */
+      public Item getItem() {
+         return item;
+      }
+   }
+   
+   /** Restores the thread's previous PerfTrack state when closed. */
+   public static final class Scope implements AutoCloseable {
+      final Item item;
+      final Item previous;
+      
+      Scope(Item i, Item p) {
+         item=i;
+         previous=p;
+      }
+      
+      public void close() {
+         if (item == null)
+            return;
+         if (previous != null)
+            threadLocalCurrent.set(previous);
+         else if (recycling)
+            threadLocalCurrent.set(null);
+         else
+            threadLocalCurrent.remove();
+      }
+   }
+   
+   /** 
+    * Stands in for a tree that PerfTrackSampler left out, counting how deep
+    * in it the thread is.  One per thread, never part of a tree.
+    */
+   static final class Unsampled extends Item {
+      int nesting;
+   }
+   
+   /**
+    * A per-thread free list of Items.  Released trees are reset and pushed
+    * back on the list, the Item's child ArrayList keeps its capacity so it 
+    * is reused along with the Item.
+    */
+   static final class ItemPool {
+      static final int MAX_SIZE=
+         Integer.getInteger("perftrack.recycle.maxPooled", 1024);
+      
+      Item free[]=new Item[64];
+      int size=0;
+      
+      Item acquire() {
+         if (size > 0) {
+            Item item=free[--size];
+            free[size]=null;
+            return item;
+         }
+         return new Item();
+      }
+      
+      void release(Item root) {
+         if (root.sharedTree) {
+            // other threads may still be adding to a shared item, and reach
+            // every item above it through parent and root, so the whole
+            // tree is left to the GC
+            return;
+         }
+         recycle(root);
+      }
+      
+      void recycle(Item item) {
+         List<Item> children=item.children;
+         for (int i=0; i<children.size(); i++) {
+            recycle(children.get(i));
+         }
+         item.reset();
+         if (size < MAX_SIZE) {
+            if (size == free.length) {
+               free=Arrays.copyOf(free, Math.min(free.length*2, MAX_SIZE));
+            }
+            free[size++]=item;
          }
-         return sb.toString();
       }
    }
 }
@@ -0,0 +1,166 @@
+package net.jmatrix.utils;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.slf4j.Logger;
+
+/**
+ * PerfTrackCounters names the counters (eg rows fetched, bytes read) and
+ * tags (eg cache hit/miss, target shard) that can be attached to the
+ * current PerfTrack item, so a slow item shows how much work it did:
+ * <pre>
+ *   static final PerfTrackCounters.Counter ROWS=PerfTrackCounters.counter("rows");
+ *   static final PerfTrackCounters.Tag SHARD=PerfTrackCounters.tag("shard");
+ *   ...
+ *   PerfTrack.add(ROWS, rs.getFetchSize());
+ *   PerfTrack.tag(SHARD, shard.getName());
+ * </pre>
+ * Each counter and tag gets a fixed slot, and items hold their values in
+ * a long[] and a String[] indexed by slot, allocated on first use and kept
+ * when items are recycled, so adding to a counter does not box or look up
+ * anything.  The number of slots is fixed at startup by
+ * -Dperftrack.maxCounters (default 16) and -Dperftrack.maxTags (default 8);
+ * names past those are logged once and ignored.
+ *
+ * As an item stops, its counters are added to its parent's, so an item's
+ * counters include those of its children, and to PerfTrackStats for its
+ * name.  Tags stay on the item they were set on.  Tag values should come
+ * from a small set, they are not aggregated.
+ */
+public final class PerfTrackCounters {
+   static Logger log=ClassLogFactory.getLog();
+
+   static final int MAX_COUNTERS=Integer.getInteger("perftrack.maxCounters", 16);
+   static final int MAX_TAGS=Integer.getInteger("perftrack.maxTags", 8);
+
+   static final ConcurrentMap<String, Counter> counters=
+      new ConcurrentHashMap<String, Counter>();
+   static final AtomicReferenceArray<Counter> counterSlots=
+      new AtomicReferenceArray<Counter>(MAX_COUNTERS);
+   static int counterCount=0;
+
+   static final ConcurrentMap<String, Tag> tags=new ConcurrentHashMap<String, Tag>();
+   static final AtomicReferenceArray<Tag> tagSlots=new AtomicReferenceArray<Tag>(MAX_TAGS);
+   static int tagCount=0;
+
+   /** Bytes read by StreamUtil. */
+   public static final Counter BYTES_READ=counter("bytesRead");
+
+   /**
+    * Returns the counter named name, giving it a slot if it is new.  Once
+    * all slots are used, returns a counter that ignores adds.
+    */
+   public static Counter counter(String name) {
+      Counter counter=counters.get(name);
+      if (counter == null)
+         counter=createCounter(name);
+      return counter;
+   }
+
+   /**
+    * Returns the tag named name, giving it a slot if it is new.  Once all
+    * slots are used, returns a tag that ignores values.
+    */
+   public static Tag tag(String name) {
+      Tag tag=tags.get(name);
+      if (tag == null)
+         tag=createTag(name);
+      return tag;
+   }
+
+   /** Returns the counter named name, or null, without creating one. */
+   public static Counter getCounter(String name) {
+      return counters.get(name);
+   }
+
+   /** Returns the tag named name, or null, without creating one. */
+   public static Tag getTag(String name) {
+      return tags.get(name);
+   }
+
+   /** Returns the counter in slot, or null if the slot is unused. */
+   public static Counter getCounter(int slot) {
+      return counterSlots.get(slot);
+   }
+
+   /** Returns the tag in slot, or null if the slot is unused. */
+   public static Tag getTag(int slot) {
+      return tagSlots.get(slot);
+   }
+
+   /** Returns the number of counter slots. */
+   public static int getMaxCounters() {
+      return MAX_COUNTERS;
+   }
+
+   /** Returns the number of tag slots. */
+   public static int getMaxTags() {
+      return MAX_TAGS;
+   }
+
+   static synchronized Counter createCounter(String name) {
+      Counter counter=counters.get(name);
+      if (counter != null)
+         return counter;
+      if (counterCount >= MAX_COUNTERS) {
+         log.warn("PerfTrackCounters: more than "+MAX_COUNTERS+" counters, "+
+                  "ignoring "+name+", see -Dperftrack.maxCounters");
+         counter=new Counter(name, -1);
+      } else {
+         counter=new Counter(name, counterCount);
+         counterSlots.set(counterCount++, counter);
+      }
+      counters.put(name, counter);
+      return counter;
+   }
+
+   static synchronized Tag createTag(String name) {
+      Tag tag=tags.get(name);
+      if (tag != null)
+         return tag;
+      if (tagCount >= MAX_TAGS) {
+         log.warn("PerfTrackCounters: more than "+MAX_TAGS+" tags, "+
+                  "ignoring "+name+", see -Dperftrack.maxTags");
+         tag=new Tag(name, -1);
+      } else {
+         tag=new Tag(name, tagCount);
+         tagSlots.set(tagCount++, tag);
+      }
+      tags.put(name, tag);
+      return tag;
+   }
+
+   /** A named counter, see PerfTrack.add(). */
+   public static final class Counter {
+      final String name;
+      final int slot;
+
+      Counter(String n, int s) {
+         name=n;
+         slot=s;
+      }
+
+      public String getName() {return name;}
+      /** The counter's slot, or -1 if it had none and is ignored. */
+      public int getSlot() {return slot;}
+      public String toString() {return name;}
+   }
+
+   /** A named tag, see PerfTrack.tag(). */
+   public static final class Tag {
+      final String name;
+      final int slot;
+
+      Tag(String n, int s) {
+         name=n;
+         slot=s;
+      }
+
+      public String getName() {return name;}
+      /** The tag's slot, or -1 if it had none and is ignored. */
+      public int getSlot() {return slot;}
+      public String toString() {return name;}
+   }
+}
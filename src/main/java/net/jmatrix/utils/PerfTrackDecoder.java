@@ -0,0 +1,241 @@
+package net.jmatrix.utils;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * PerfTrackDecoder reads trees written by {@link PerfTrackEncoder}, one at
+ * a time, as PerfTrack Items that can be rendered with
+ * PerfTrack.toString(Item, int) or passed to a PerfTrackExporter.Sink.
+ *
+ * Throwables are restored as a {@link DecodedThrowable} carrying the
+ * original class name, and labels as Strings.  Counters and tags are
+ * restored only if this process already has them; decoding never uses up
+ * PerfTrackCounters slots, so others are dropped.
+ *
+ * Counts and lengths read from the stream are checked against the bytes
+ * left in it, when its length is known, so a corrupt one fails with an
+ * IOException rather than a huge allocation.  Otherwise arrays are grown
+ * as their contents are read rather than sized from the count.
+ */
+public final class PerfTrackDecoder implements Closeable {
+   /** The fewest bytes a node of a TREE can take, see PerfTrackEncoder. */
+   static final int MIN_NODE_BYTES=7;
+
+   final InputStream in;
+   final List<String> dictionary=new ArrayList<String>();
+   long lastRootStart=0;
+   /** Bytes left in the stream, Long.MAX_VALUE if its length is not known. */
+   long remaining;
+
+   /** Reads and checks the stream header. */
+   public PerfTrackDecoder(InputStream in) throws IOException {
+      this(in, Long.MAX_VALUE);
+   }
+
+   /** 
+    * Reads and checks the header of a stream of length bytes, eg a
+    * PerfTrackRecorder slot.
+    */
+   public PerfTrackDecoder(InputStream in, long length) throws IOException {
+      this.in=in;
+      remaining=length;
+      for (int i=0; i<PerfTrackEncoder.MAGIC.length; i++) {
+         if (readByte() != PerfTrackEncoder.MAGIC[i])
+            throw new IOException("Not a PerfTrack stream");
+      }
+      int version=readByte();
+      // version 1 streams differ only in having no counters or tags
+      if (version < 1 || version > PerfTrackEncoder.VERSION)
+         throw new IOException("Unsupported PerfTrack stream version "+version);
+   }
+
+   /** Returns the next tree, or null at the end of the stream. */
+   public PerfTrack.Item read() throws IOException {
+      while (true) {
+         int type=in.read();
+         if (type >= 0)
+            remaining--;
+         switch (type) {
+            case -1:
+               return null;
+            case PerfTrackEncoder.DEFINE:
+               dictionary.add(readString());
+               break;
+            case PerfTrackEncoder.RESET:
+               dictionary.clear();
+               lastRootStart=0;
+               break;
+            case PerfTrackEncoder.TREE:
+               return readTree();
+            default:
+               throw new IOException("Bad PerfTrack record type "+type);
+         }
+      }
+   }
+
+   /** */
+   public void close() throws IOException {
+      in.close();
+   }
+
+   PerfTrack.Item readTree() throws IOException {
+      long rootStart=lastRootStart+readSignedVarLong();
+      lastRootStart=rootStart;
+      int count=readCount(MIN_NODE_BYTES, "node");
+      int capacity=Math.min(count, 1024);
+      PerfTrack.Item nodes[]=new PerfTrack.Item[capacity];
+      // where the next child's start gap is measured from, by node
+      long childBase[]=new long[capacity];
+      for (int i=0; i<count; i++) {
+         if (i == nodes.length) {
+            nodes=Arrays.copyOf(nodes, (int)Math.min(count, nodes.length*2L));
+            childBase=Arrays.copyOf(childBase, nodes.length);
+         }
+         String name=string(readVarLong());
+         long idRef=readVarLong();
+         int parentDelta=(int)readVarLong();
+         long startGap=readSignedVarLong();
+         long duration=readSignedVarLong();
+         long thresholdDelta=readSignedVarLong();
+         int flags=readByte();
+
+         PerfTrack.Item parent=null;
+         int parentIndex=i-parentDelta;
+         if (i > 0) {
+            if (parentDelta <= 0 || parentDelta > i)
+               throw new IOException("Bad parent for PerfTrack item "+i);
+            parent=nodes[parentIndex];
+         }
+         PerfTrack.Item item=new PerfTrack.Item(name, parent);
+         item.id=idRef == 0 ? name : string(idRef-1);
+         if (parent == null) {
+            item.startNanos=0;
+            item.threshold=thresholdDelta;
+         } else {
+            item.startNanos=childBase[parentIndex]+startGap;
+            item.threshold=parent.threshold+thresholdDelta;
+            childBase[parentIndex]=item.startNanos+duration;
+         }
+         childBase[i]=item.startNanos;
+         item.start=rootStart+item.startNanos/PerfTrack.NANOS_PER_MILLI;
+         if ((flags & PerfTrackEncoder.FLAG_NOT_DONE) == 0) {
+            item.etNanos=duration;
+            item.et=duration/PerfTrack.NANOS_PER_MILLI;
+            item.stop=item.start+item.et;
+         }
+         if ((flags & PerfTrackEncoder.FLAG_THROWABLE) != 0)
+            item.throwable=new DecodedThrowable(string(readVarLong()));
+         if ((flags & PerfTrackEncoder.FLAG_LABEL) != 0)
+            item.label=readString();
+         if ((flags & PerfTrackEncoder.FLAG_MERGED) != 0) {
+            item.merged=true;
+            item.count=readVarLong();
+            item.minNanos=readVarLong();
+            item.maxNanos=readVarLong();
+         }
+         if ((flags & PerfTrackEncoder.FLAG_COUNTERS) != 0) {
+            int n=readCount(2, "counter");
+            for (int c=0; c<n; c++) {
+               PerfTrackCounters.Counter counter=PerfTrackCounters.getCounter(string(readVarLong()));
+               long value=readSignedVarLong();
+               if (counter != null && counter.slot >= 0)
+                  item.counterSlots()[counter.slot]=value;
+            }
+         }
+         if ((flags & PerfTrackEncoder.FLAG_TAGS) != 0) {
+            int n=readCount(2, "tag");
+            for (int t=0; t<n; t++) {
+               PerfTrackCounters.Tag tag=PerfTrackCounters.getTag(string(readVarLong()));
+               String value=string(readVarLong());
+               if (tag != null && tag.slot >= 0)
+                  item.tagSlots()[tag.slot]=value;
+            }
+         }
+         nodes[i]=item;
+      }
+      return count == 0 ? null : nodes[0];
+   }
+
+   String string(long ref) throws IOException {
+      if (ref < 0 || ref >= dictionary.size())
+         throw new IOException("Bad PerfTrack string reference "+ref);
+      return dictionary.get((int)ref);
+   }
+
+   /** 
+    * Reads a count of things each taking at least minBytes, checking it 
+    * against the bytes left in the stream.
+    */
+   int readCount(int minBytes, String what) throws IOException {
+      long n=readVarLong();
+      if (n < 0 || n > Integer.MAX_VALUE || n > remaining/minBytes)
+         throw new IOException("Bad PerfTrack "+what+" count "+n);
+      return (int)n;
+   }
+
+   String readString() throws IOException {
+      int len=readCount(1, "string length");
+      byte bytes[]=new byte[Math.min(len, 8192)];
+      int off=0;
+      while (off < len) {
+         if (off == bytes.length)
+            bytes=Arrays.copyOf(bytes, (int)Math.min(len, bytes.length*2L));
+         int n=in.read(bytes, off, bytes.length-off);
+         if (n < 0)
+            throw new EOFException();
+         off+=n;
+         remaining-=n;
+      }
+      return new String(bytes, 0, len, StandardCharsets.UTF_8);
+   }
+
+   long readSignedVarLong() throws IOException {
+      long v=readVarLong();
+      return (v >>> 1) ^ -(v & 1);
+   }
+
+   long readVarLong() throws IOException {
+      long v=0;
+      for (int shift=0; shift < 64; shift+=7) {
+         int b=readByte();
+         v|=(long)(b & 0x7F) << shift;
+         if ((b & 0x80) == 0)
+            return v;
+      }
+      throw new IOException("Malformed varint");
+   }
+
+   int readByte() throws IOException {
+      int b=in.read();
+      if (b < 0)
+         throw new EOFException();
+      remaining--;
+      return b;
+   }
+
+   /**
+    * Stands in for a Throwable recorded in a decoded tree.  getClassName()
+    * returns the original class name.
+    */
+   public static class DecodedThrowable extends Throwable {
+      private static final long serialVersionUID=1L;
+
+      final String className;
+
+      public DecodedThrowable(String className) {
+         super(className, null, false, false);
+         this.className=className;
+      }
+
+      public String getClassName() {
+         return className;
+      }
+   }
+}
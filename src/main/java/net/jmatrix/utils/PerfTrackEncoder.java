@@ -0,0 +1,421 @@
+package net.jmatrix.utils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * PerfTrackEncoder writes PerfTrack trees to a stream in a compact binary
+ * format, read back by {@link PerfTrackDecoder}.  A typical tree takes a
+ * few bytes per item, against tens of bytes per line for the text output.
+ *
+ * The stream starts with the 4 byte header "PTB" + version, followed by
+ * records, each starting with a type byte:
+ * <pre>
+ *   DEFINE  name                 adds the next string to the dictionary
+ *   TREE    rootStart nodeCount  a tree, its nodes in pre-order
+ *   RESET                        empties the dictionary
+ * </pre>
+ * Each node of a TREE is
+ * <pre>
+ *   nameRef idRef parentDelta startGap duration thresholdDelta flags
+ *      [throwableRef] [label] [count minNanos maxNanos]
+ *      [counterCount (nameRef value)*] [tagCount (nameRef valueRef)*]
+ * </pre>
+ * Strings (names, ids, throwable class names) are written once as DEFINE
+ * records and then referred to by dictionary index.  An idRef of 0 means
+ * the id is the name, otherwise it is the dictionary index + 1.
+ * parentDelta is the node's index minus its parent's index (0 for the
+ * root).  startGap is nanoseconds from the end of the previous sibling, or
+ * from the parent's start for a first child (0 for the root), which is
+ * small for sequential calls.  duration is in nanoseconds and
+ * thresholdDelta is the difference from the parent's threshold.  rootStart
+ * is the root's wall clock start in milliseconds, as a difference from the
+ * previous tree's.  All numbers are varints, signed ones zig-zag encoded.
+ * Labels are written inline as they are rarely repeated.  The call count
+ * and min/max are only written for merged items, see PerfTrack.maxNodes.
+ * Counters and tags (see PerfTrackCounters) are written by name, only
+ * those that are set, so trees can be read by a process that gave them
+ * other slots.
+ *
+ * Each tree is first read into a snapshot, one Node per item, which both
+ * the DEFINE records and the TREE are written from, so they agree even if
+ * the tree is still changing (eg attached workers or spans still adding
+ * to shared items).  Shared items are read under their lock.
+ *
+ * An encoder is not thread safe - one is normally owned by the exporter
+ * thread, eg through an {@link EncoderSink}.  Apart from new dictionary
+ * entries, labels and copies of shared items' children, encoding does not
+ * allocate once its snapshot has grown to the size of the trees written.
+ */
+public final class PerfTrackEncoder implements Closeable {
+   static final byte[] MAGIC={'P', 'T', 'B'};
+   static final byte VERSION=2;
+
+   static final int DEFINE=1;
+   static final int TREE=2;
+   static final int RESET=3;
+
+   static final int FLAG_THROWABLE=1;
+   static final int FLAG_LABEL=2;
+   static final int FLAG_NOT_DONE=4;
+   static final int FLAG_MERGED=8;
+   static final int FLAG_COUNTERS=16;
+   static final int FLAG_TAGS=32;
+
+   /** The dictionary is reset when it reaches this many strings. */
+   static final int MAX_DICTIONARY=
+      Integer.getInteger("perftrack.encoder.maxDictionary", 65536);
+
+   final OutputStream out;
+   final byte buf[]=new byte[8192];
+   int pos=0;
+   long bytesWritten=0;
+
+   final Map<String, Integer> dictionary=new HashMap<String, Integer>();
+   long lastRootStart=0;
+
+   /** When false, only labels that are already Strings are written. */
+   boolean formatLabels=true;
+
+   /** The tree being written, in pre-order, see snapshot(). */
+   final List<Node> nodes=new ArrayList<Node>();
+   int nodeCount=0;
+   /** Where the next child's start gap is measured from, by node. */
+   long childBase[]=new long[64];
+
+   /** Writes the stream header to out. */
+   public PerfTrackEncoder(OutputStream out) throws IOException {
+      this.out=out;
+      writeHeader();
+   }
+
+   /** 
+    * When false, deferred labels (see PerfTrack.start(String, String, long,
+    * Object)) are left out rather than formatted, so encoding a tree costs
+    * no more than its names, timings and throwables.  Labels of trees that
+    * were shown have already been made Strings and are still written.
+    */
+   void setFormatLabels(boolean b) {
+      formatLabels=b;
+   }
+
+   /** 
+    * Appends one tree, as it is when this is called.  Items still running
+    * are written as not done.
+    */
+   public void write(PerfTrack.Item root) throws IOException {
+      if (dictionary.size() >= MAX_DICTIONARY)
+         reset();
+
+      nodeCount=0;
+      snapshot(root, -1);
+      try {
+         for (int i=0; i<nodeCount; i++) {
+            define(nodes.get(i));
+         }
+         writeByte(TREE);
+         writeSignedVarLong(root.start-lastRootStart);
+         lastRootStart=root.start;
+         writeVarLong(nodeCount);
+         for (int i=0; i<nodeCount; i++) {
+            writeNode(i);
+         }
+      } finally {
+         // don't keep the tree's labels reachable
+         for (int i=0; i<nodeCount; i++) {
+            nodes.get(i).label=null;
+         }
+      }
+   }
+
+   /**
+    * Empties the dictionary, so the records that follow can be decoded
+    * without those before them.
+    */
+   public void reset() throws IOException {
+      dictionary.clear();
+      lastRootStart=0;
+      writeByte(RESET);
+   }
+
+   /**
+    * Discards anything not yet flushed and starts a new stream, header
+    * and all, eg for each slot of a {@link PerfTrackRecorder}.
+    */
+   void restart() throws IOException {
+      pos=0;
+      dictionary.clear();
+      lastRootStart=0;
+      writeHeader();
+   }
+
+   /** */
+   public void flush() throws IOException {
+      if (pos > 0) {
+         out.write(buf, 0, pos);
+         bytesWritten+=pos;
+         pos=0;
+      }
+      out.flush();
+   }
+
+   /** */
+   public void close() throws IOException {
+      flush();
+      out.close();
+   }
+
+   /** Returns the number of bytes flushed to the stream. */
+   public long getBytesWritten() {
+      return bytesWritten;
+   }
+
+   void writeHeader() throws IOException {
+      writeBytes(MAGIC, 0, MAGIC.length);
+      writeByte(VERSION);
+   }
+
+   /** Adds item and its children, in pre-order, to the snapshot. */
+   void snapshot(PerfTrack.Item item, int parent) {
+      if (nodeCount == nodes.size())
+         nodes.add(new Node());
+      int index=nodeCount++;
+      Node node=nodes.get(index);
+      node.parent=parent;
+      List<PerfTrack.Item> children;
+      if (item.shared) {
+         synchronized (item) {
+            node.read(item);
+            children=new ArrayList<PerfTrack.Item>(item.children);
+         }
+      } else {
+         node.read(item);
+         children=item.children;
+      }
+      if (!formatLabels && !(node.label instanceof String))
+         node.label=null;
+      for (int i=0; i<children.size(); i++) {
+         snapshot(children.get(i), index);
+      }
+   }
+
+   /** Writes DEFINE records for the node's new strings. */
+   void define(Node node) throws IOException {
+      defineString(node.name);
+      if (node.id != null)
+         defineString(node.id);
+      if (node.throwable != null)
+         defineString(node.throwable);
+      for (int i=0; i<node.counterCount; i++) {
+         defineString(node.counterNames[i]);
+      }
+      for (int i=0; i<node.tagCount; i++) {
+         defineString(node.tagNames[i]);
+         defineString(node.tags[i]);
+      }
+   }
+
+   void defineString(String s) throws IOException {
+      if (dictionary.containsKey(s))
+         return;
+      dictionary.put(s, dictionary.size());
+      writeByte(DEFINE);
+      writeString(s);
+   }
+
+   /** Writes the index'th node of the snapshot. */
+   void writeNode(int index) throws IOException {
+      Node node=nodes.get(index);
+      if (childBase.length <= index)
+         childBase=Arrays.copyOf(childBase, Math.max(index+1, childBase.length*2));
+      long baseNanos=node.startNanos;
+      long parentThreshold=0;
+      if (index > 0) {
+         baseNanos=childBase[node.parent];
+         parentThreshold=nodes.get(node.parent).threshold;
+         childBase[node.parent]=node.startNanos+node.etNanos;
+      }
+      childBase[index]=node.startNanos;
+
+      writeVarLong(dictionary.get(node.name));
+      if (node.id == null || node.id.equals(node.name))
+         writeVarLong(0);
+      else
+         writeVarLong(dictionary.get(node.id)+1);
+      writeVarLong(index > 0 ? index-node.parent : 0);
+      writeSignedVarLong(node.startNanos-baseNanos);
+      writeSignedVarLong(node.etNanos);
+      writeSignedVarLong(node.threshold-parentThreshold);
+
+      int flags=0;
+      if (node.throwable != null) flags|=FLAG_THROWABLE;
+      if (node.label != null) flags|=FLAG_LABEL;
+      if (!node.done) flags|=FLAG_NOT_DONE;
+      if (node.merged) flags|=FLAG_MERGED;
+      if (node.counterCount > 0) flags|=FLAG_COUNTERS;
+      if (node.tagCount > 0) flags|=FLAG_TAGS;
+      writeByte(flags);
+      if (node.throwable != null)
+         writeVarLong(dictionary.get(node.throwable));
+      if (node.label != null)
+         writeString(node.label.toString());
+      if (node.merged) {
+         writeVarLong(node.count);
+         writeVarLong(node.minNanos);
+         writeVarLong(node.maxNanos);
+      }
+      if (node.counterCount > 0) {
+         writeVarLong(node.counterCount);
+         for (int i=0; i<node.counterCount; i++) {
+            writeVarLong(dictionary.get(node.counterNames[i]));
+            writeSignedVarLong(node.counters[i]);
+         }
+      }
+      if (node.tagCount > 0) {
+         writeVarLong(node.tagCount);
+         for (int i=0; i<node.tagCount; i++) {
+            writeVarLong(dictionary.get(node.tagNames[i]));
+            writeVarLong(dictionary.get(node.tags[i]));
+         }
+      }
+   }
+
+   void writeString(String s) throws IOException {
+      byte bytes[]=s.getBytes(StandardCharsets.UTF_8);
+      writeVarLong(bytes.length);
+      writeBytes(bytes, 0, bytes.length);
+   }
+
+   void writeSignedVarLong(long v) throws IOException {
+      writeVarLong((v << 1) ^ (v >> 63));
+   }
+
+   void writeVarLong(long v) throws IOException {
+      if (pos+10 > buf.length)
+         drain();
+      while ((v & ~0x7FL) != 0) {
+         buf[pos++]=(byte)((v & 0x7F) | 0x80);
+         v>>>=7;
+      }
+      buf[pos++]=(byte)v;
+   }
+
+   void writeByte(int b) throws IOException {
+      if (pos == buf.length)
+         drain();
+      buf[pos++]=(byte)b;
+   }
+
+   void writeBytes(byte b[], int off, int len) throws IOException {
+      if (pos+len > buf.length) {
+         drain();
+         if (len > buf.length) {
+            out.write(b, off, len);
+            bytesWritten+=len;
+            return;
+         }
+      }
+      System.arraycopy(b, off, buf, pos, len);
+      pos+=len;
+   }
+
+   void drain() throws IOException {
+      out.write(buf, 0, pos);
+      bytesWritten+=pos;
+      pos=0;
+   }
+
+   /** 
+    * An item as it was read into the snapshot.  Counters and tags that are
+    * set are kept with their names, in slot order.
+    */
+   static final class Node {
+      int parent;
+      String name;
+      String id;
+      Object label;
+      long startNanos;
+      long etNanos;
+      long threshold;
+      boolean done;
+      String throwable;
+      boolean merged;
+      long count;
+      long minNanos;
+      long maxNanos;
+      int counterCount;
+      String counterNames[]=new String[0];
+      long counters[]=new long[0];
+      int tagCount;
+      String tagNames[]=new String[0];
+      String tags[]=new String[0];
+
+      void read(PerfTrack.Item item) {
+         name=item.name;
+         id=item.id;
+         label=item.label;
+         startNanos=item.startNanos;
+         etNanos=item.etNanos;
+         threshold=item.threshold;
+         done=item.isDone();
+         throwable=item.getThrowableClassName();
+         merged=item.merged;
+         count=item.count;
+         minNanos=item.minNanos;
+         maxNanos=item.maxNanos;
+
+         counterCount=0;
+         long c[]=item.counters;
+         for (int i=0; c != null && i<c.length; i++) {
+            if (c[i] != 0) {
+               if (counterCount == counters.length) {
+                  counters=Arrays.copyOf(counters, c.length);
+                  counterNames=Arrays.copyOf(counterNames, c.length);
+               }
+               counterNames[counterCount]=PerfTrackCounters.getCounter(i).name;
+               counters[counterCount++]=c[i];
+            }
+         }
+         tagCount=0;
+         String t[]=item.tags;
+         for (int i=0; t != null && i<t.length; i++) {
+            if (t[i] != null) {
+               if (tagCount == tags.length) {
+                  tags=Arrays.copyOf(tags, t.length);
+                  tagNames=Arrays.copyOf(tagNames, t.length);
+               }
+               tagNames[tagCount]=PerfTrackCounters.getTag(i).name;
+               tags[tagCount++]=t[i];
+            }
+         }
+      }
+   }
+
+   /**
+    * Writes exported trees to a stream, eg a file, flushing after each.
+    * Register with PerfTrackExporter.addSink().
+    */
+   public static class EncoderSink implements PerfTrackExporter.Sink, Closeable {
+      final PerfTrackEncoder encoder;
+
+      public EncoderSink(OutputStream out) throws IOException {
+         encoder=new PerfTrackEncoder(out);
+      }
+
+      public synchronized void export(PerfTrack.Item root) throws IOException {
+         encoder.write(root);
+         encoder.flush();
+      }
+
+      public synchronized void close() throws IOException {
+         encoder.close();
+      }
+   }
+}
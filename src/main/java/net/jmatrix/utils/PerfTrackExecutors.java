@@ -0,0 +1,228 @@
+package net.jmatrix.utils;
+
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * PerfTrackExecutors carries the PerfTrack context of the submitting thread
+ * into work run on other threads.  Items started by a wrapped task become
+ * children of the item that was current when the task was wrapped, so
+ * work fanned out to a pool shows up in the request's tree.
+ *
+ * <pre>
+ *   ExecutorService pool=PerfTrackExecutors.wrap(Executors.newFixedThreadPool(8));
+ *   CompletableFuture.supplyAsync(PerfTrackExecutors.wrapSupplier(supplier), pool);
+ *   list.parallelStream().map(PerfTrackExecutors.wrapFunction(function))...
+ * </pre>
+ *
+ * Suppliers and Functions have their own method names, since a lambda
+ * would match both wrap(Callable) and wrap(Supplier).
+ *
+ * Wrapping a ForkJoinPool only covers the tasks submitted to it.  Subtasks
+ * created with fork() or invokeAll() are not submitted through the wrapper,
+ * so a fork/join computation should extend TrackedRecursiveTask or 
+ * TrackedRecursiveAction, which carry the context into every subtask.  In
+ * a parallel stream, only the stages passed through wrapFunction() run in
+ * the request's tree.
+ *
+ * Tasks wrapped while nothing is being tracked are returned unwrapped.
+ * Fan-out work should complete before the request's tree is logged, or
+ * it will be missing from (or still running in) the output.
+ */
+public final class PerfTrackExecutors {
+
+   /** */
+   public static Runnable wrap(final Runnable task) {
+      final PerfTrack.Context context=PerfTrack.capture();
+      if (context.isEmpty())
+         return task;
+      return new Runnable() {
+         public void run() {
+            PerfTrack.Scope scope=context.attach();
+            try {
+               task.run();
+            } finally {
+               scope.close();
+            }
+         }
+      };
+   }
+
+   /** */
+   public static <T> Callable<T> wrap(final Callable<T> task) {
+      final PerfTrack.Context context=PerfTrack.capture();
+      if (context.isEmpty())
+         return task;
+      return new Callable<T>() {
+         public T call() throws Exception {
+            PerfTrack.Scope scope=context.attach();
+            try {
+               return task.call();
+            } finally {
+               scope.close();
+            }
+         }
+      };
+   }
+
+   /** For CompletableFuture.supplyAsync() */
+   public static <T> Supplier<T> wrapSupplier(final Supplier<T> task) {
+      final PerfTrack.Context context=PerfTrack.capture();
+      if (context.isEmpty())
+         return task;
+      return new Supplier<T>() {
+         public T get() {
+            PerfTrack.Scope scope=context.attach();
+            try {
+               return task.get();
+            } finally {
+               scope.close();
+            }
+         }
+      };
+   }
+
+   /** For parallel streams and CompletableFuture.thenApplyAsync() */
+   public static <T, R> Function<T, R> wrapFunction(final Function<T, R> task) {
+      final PerfTrack.Context context=PerfTrack.capture();
+      if (context.isEmpty())
+         return task;
+      return new Function<T, R>() {
+         public R apply(T t) {
+            PerfTrack.Scope scope=context.attach();
+            try {
+               return task.apply(t);
+            } finally {
+               scope.close();
+            }
+         }
+      };
+   }
+
+   /** Returns an Executor that wraps each task when it is executed. */
+   public static Executor wrap(final Executor executor) {
+      return new Executor() {
+         public void execute(Runnable task) {
+            executor.execute(wrap(task));
+         }
+      };
+   }
+
+   /**
+    * Returns an ExecutorService, eg for a ThreadPoolExecutor or ForkJoinPool,
+    * that wraps each task when it is submitted.
+    */
+   public static ExecutorService wrap(ExecutorService executor) {
+      return new TrackingExecutorService(executor);
+   }
+
+   /**
+    * A RecursiveTask whose compute() runs attached to the PerfTrack context
+    * that was current when the task was constructed.  Subtasks constructed
+    * in compute() capture the context compute() runs in, so the pieces of
+    * a fork()/invokeAll() decomposition stay in the tree whichever worker
+    * runs them.
+    */
+   public static abstract class TrackedRecursiveTask<V> extends ForkJoinTask<V> {
+      private static final long serialVersionUID=1L;
+      
+      final transient PerfTrack.Context context=PerfTrack.capture();
+      V result;
+      
+      /** The task's computation, as RecursiveTask.compute(). */
+      protected abstract V compute();
+      
+      public final V getRawResult() {
+         return result;
+      }
+      
+      protected final void setRawResult(V value) {
+         result=value;
+      }
+      
+      protected final boolean exec() {
+         PerfTrack.Scope scope=attach(context);
+         try {
+            result=compute();
+         } finally {
+            scope.close();
+         }
+         return true;
+      }
+   }
+   
+   /** As TrackedRecursiveTask, for a RecursiveAction. */
+   public static abstract class TrackedRecursiveAction extends ForkJoinTask<Void> {
+      private static final long serialVersionUID=1L;
+      
+      final transient PerfTrack.Context context=PerfTrack.capture();
+      
+      /** The task's computation, as RecursiveAction.compute(). */
+      protected abstract void compute();
+      
+      public final Void getRawResult() {
+         return null;
+      }
+      
+      protected final void setRawResult(Void value) {
+      }
+      
+      protected final boolean exec() {
+         PerfTrack.Scope scope=attach(context);
+         try {
+            compute();
+         } finally {
+            scope.close();
+         }
+         return true;
+      }
+   }
+
+   /** Attaches context, which is null in a deserialized task. */
+   static PerfTrack.Scope attach(PerfTrack.Context context) {
+      return (context == null ? PerfTrack.Context.EMPTY : context).attach();
+   }
+
+   /**
+    * submit(), invokeAll() and invokeAny() all execute() their tasks, which
+    * runs on the submitting thread, so that is where the context is captured.
+    */
+   static final class TrackingExecutorService extends AbstractExecutorService {
+      final ExecutorService executor;
+
+      TrackingExecutorService(ExecutorService e) {
+         executor=e;
+      }
+
+      public void execute(Runnable task) {
+         executor.execute(wrap(task));
+      }
+
+      public void shutdown() {
+         executor.shutdown();
+      }
+
+      public List<Runnable> shutdownNow() {
+         return executor.shutdownNow();
+      }
+
+      public boolean isShutdown() {
+         return executor.isShutdown();
+      }
+
+      public boolean isTerminated() {
+         return executor.isTerminated();
+      }
+
+      public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+         return executor.awaitTermination(timeout, unit);
+      }
+   }
+}
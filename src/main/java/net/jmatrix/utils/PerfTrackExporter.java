@@ -0,0 +1,325 @@
+package net.jmatrix.utils;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+
+/**
+ * PerfTrackExporter moves the rendering and writing of completed PerfTrack
+ * trees off the request thread.  A completed root Item is handed to
+ * export(), which puts it on a bounded, lock free queue and returns.  A
+ * single daemon thread takes trees off the queue and passes each one to
+ * every registered Sink.
+ *
+ * When the queue is full the OverflowPolicy decides what happens:
+ * <ul>
+ * <li>DROP - the new tree is discarded (the default)</li>
+ * <li>DROP_OLDEST - the oldest queued tree is discarded to make room</li>
+ * <li>CALLER_RUNS - the calling thread passes the tree to the sinks itself</li>
+ * </ul>
+ *
+ * Exporting is off by default, and is turned on with -Dperftrack.export=true
+ * or setEnabled(true).  The queue capacity is -Dperftrack.export.capacity
+ * (default 1024) and the policy -Dperftrack.export.policy.  By default trees
+ * are written by LogSink to the logger they were exported with, eg that of
+ * the class PerfTrackAspect advised, so they go to the same log, under the
+ * same DEBUG setting, as when exporting is off.  A tree no sink would write
+ * (see hasSink()) is not queued.
+ *
+ * Trees passed to export() must have been detached from their thread with
+ * PerfTrack.detach() so they are not recycled while queued.
+ */
+public final class PerfTrackExporter {
+   static Logger log=ClassLogFactory.getLog();
+
+   /** What export() does when the queue is full. */
+   public enum OverflowPolicy {DROP, DROP_OLDEST, CALLER_RUNS}
+
+   /** Receives completed trees, on the exporter thread. */
+   public interface Sink {
+      void export(PerfTrack.Item root) throws Exception;
+   }
+
+   /** Writes trees to the log at DEBUG, in the PerfTrack.toString() format. */
+   public static class LogSink implements Sink {
+      final Logger sinkLog;
+
+      /** Writes each tree to the logger it was exported with. */
+      public LogSink() {
+         this(null);
+      }
+
+      /** Writes every tree to l. */
+      public LogSink(Logger l) {
+         sinkLog=l;
+      }
+
+      public void export(PerfTrack.Item root) {
+         export(root, null);
+      }
+
+      /** Writes root to this sink's logger, or else origin's. */
+      public void export(PerfTrack.Item root, Logger origin) {
+         Logger l=getLog(origin);
+         if (l.isDebugEnabled())
+            l.debug("PerfTrack:\n"+PerfTrack.toString(root, 0));
+      }
+
+      Logger getLog(Logger origin) {
+         if (sinkLog != null)
+            return sinkLog;
+         return origin == null ? log : origin;
+      }
+   }
+
+   static final long IDLE_PARK_NANOS=TimeUnit.MILLISECONDS.toNanos(100);
+
+   static volatile boolean enabled=
+      Boolean.valueOf(System.getProperty("perftrack.export", "false"));
+
+   static volatile int capacity=
+      Integer.getInteger("perftrack.export.capacity", 1024);
+
+   static volatile OverflowPolicy policy=
+      OverflowPolicy.valueOf(System.getProperty("perftrack.export.policy", "DROP"));
+
+   static final List<Sink> sinks=new CopyOnWriteArrayList<Sink>();
+   static {
+      sinks.add(new LogSink());
+   }
+
+   static final ConcurrentLinkedQueue<Export> queue=
+      new ConcurrentLinkedQueue<Export>();
+   /** Trees queued or being exported.  ConcurrentLinkedQueue.size() is O(n). */
+   static final AtomicInteger pending=new AtomicInteger();
+
+   static final LongAdder exported=new LongAdder();
+   static final LongAdder dropped=new LongAdder();
+   static final LongAdder failed=new LongAdder();
+
+   static volatile Thread worker;
+   static volatile boolean workerWaiting;
+
+   /** */
+   public static boolean isEnabled() {
+      return enabled;
+   }
+
+   /** */
+   public static void setEnabled(boolean b) {
+      enabled=b;
+   }
+
+   /** Sets the maximum number of trees waiting to be exported. */
+   public static void setCapacity(int c) {
+      capacity=c;
+   }
+
+   /** */
+   public static int getCapacity() {
+      return capacity;
+   }
+
+   /** */
+   public static void setOverflowPolicy(OverflowPolicy p) {
+      policy=p;
+   }
+
+   /** */
+   public static OverflowPolicy getOverflowPolicy() {
+      return policy;
+   }
+
+   /** */
+   public static void addSink(Sink sink) {
+      sinks.add(sink);
+   }
+
+   /** */
+   public static void removeSink(Sink sink) {
+      sinks.remove(sink);
+   }
+
+   /** Removes all sinks, including the default LogSink. */
+   public static void clearSinks() {
+      sinks.clear();
+   }
+
+   /** */
+   public static List<Sink> getSinks() {
+      return sinks;
+   }
+
+   /**
+    * Returns true if a tree exported with origin would be written by some
+    * sink.  The LogSink only writes if its logger has DEBUG enabled, other
+    * sinks always consume trees.
+    */
+   public static boolean hasSink(Logger origin) {
+      for (Sink sink:sinks) {
+         if (!(sink instanceof LogSink) || 
+             ((LogSink)sink).getLog(origin).isDebugEnabled())
+            return true;
+      }
+      return false;
+   }
+
+   /** Queues a detached tree for export, see export(Item, Logger). */
+   public static boolean export(PerfTrack.Item root) {
+      return export(root, null);
+   }
+
+   /**
+    * Queues a detached tree for export.  origin is the logger the tree 
+    * would have been logged to, which the default LogSink writes it to.
+    * Returns false if the tree was dropped because the queue is full.
+    */
+   public static boolean export(PerfTrack.Item root, Logger origin) {
+      if (root == null)
+         return false;
+
+      Export export=new Export(root, origin);
+      if (pending.incrementAndGet() > capacity) {
+         pending.decrementAndGet();
+         switch (policy) {
+            case CALLER_RUNS:
+               deliver(export);
+               return true;
+            case DROP_OLDEST:
+               if (queue.poll() != null) {
+                  dropped.increment();
+                  // the oldest tree's slot is reused
+                  queue.offer(export);
+                  wakeWorker();
+                  return true;
+               }
+               // drained meanwhile, the new tree is dropped
+               dropped.increment();
+               return false;
+            default:
+               dropped.increment();
+               return false;
+         }
+      }
+
+      queue.offer(export);
+      wakeWorker();
+      return true;
+   }
+
+   /**
+    * Waits up to timeoutMillis for all queued trees to be exported.  Returns
+    * true if the queue was drained.
+    */
+   public static boolean flush(long timeoutMillis) {
+      long deadline=System.nanoTime()+TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+      while (pending.get() > 0) {
+         if (System.nanoTime()-deadline > 0)
+            return false;
+         wakeWorker();
+         LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+      }
+      return true;
+   }
+
+   /** Returns the number of trees waiting to be exported. */
+   public static int getQueueDepth() {
+      return pending.get();
+   }
+
+   /** Returns the number of trees passed to the sinks. */
+   public static long getExportedCount() {
+      return exported.sum();
+   }
+
+   /** Returns the number of trees discarded because the queue was full. */
+   public static long getDroppedCount() {
+      return dropped.sum();
+   }
+
+   /** Returns the number of times a sink threw while exporting a tree. */
+   public static long getFailedCount() {
+      return failed.sum();
+   }
+
+   /** Resets the exported, dropped and failed counts. */
+   public static void resetCounts() {
+      exported.reset();
+      dropped.reset();
+      failed.reset();
+   }
+
+   static void wakeWorker() {
+      Thread t=worker;
+      if (t == null) {
+         t=startWorker();
+      }
+      if (workerWaiting)
+         LockSupport.unpark(t);
+   }
+
+   static synchronized Thread startWorker() {
+      if (worker == null) {
+         Thread t=new Thread(new Runnable() {
+            public void run() {
+               drain();
+            }
+         }, "PerfTrackExporter");
+         t.setDaemon(true);
+         t.start();
+         worker=t;
+      }
+      return worker;
+   }
+
+   static void drain() {
+      while (true) {
+         Export export=queue.poll();
+         if (export == null) {
+            workerWaiting=true;
+            // recheck, export() may have missed the flag
+            if (queue.isEmpty())
+               LockSupport.parkNanos(IDLE_PARK_NANOS);
+            workerWaiting=false;
+            continue;
+         }
+         try {
+            deliver(export);
+         } finally {
+            pending.decrementAndGet();
+         }
+      }
+   }
+
+   static void deliver(Export export) {
+      for (Sink sink:sinks) {
+         try {
+            if (sink instanceof LogSink)
+               ((LogSink)sink).export(export.root, export.origin);
+            else
+               sink.export(export.root);
+         } catch (Throwable t) {
+            failed.increment();
+            log.warn("PerfTrack export to "+sink+" failed", t);
+         }
+      }
+      exported.increment();
+   }
+
+   /** A queued tree and the logger it was exported with. */
+   static final class Export {
+      final PerfTrack.Item root;
+      final Logger origin;
+
+      Export(PerfTrack.Item r, Logger o) {
+         root=r;
+         origin=o;
+      }
+   }
+}
@@ -0,0 +1,168 @@
+package net.jmatrix.utils;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * PerfTrackFoldedStacks merges PerfTrack trees into the folded stack format
+ * read by flame graph tools (flamegraph.pl, speedscope, async-profiler's
+ * converters), one line per call path with its self time in microseconds:
+ * <pre>
+ *   OrderService.placeOrder;OrderDao.insert 1520
+ *   OrderService.placeOrder;PaymentClient.charge 48210
+ * </pre>
+ * Self time is an item's elapsed time less that of its children.  Paths
+ * are merged by item name across all trees added, so thousands of requests
+ * give one graph of where time goes.  Register an instance as a
+ * PerfTrackExporter.Sink to collect every exported tree, and write() it on
+ * demand.  writeTree() writes a single tree without merging.
+ *
+ * ';' in names is replaced by ':', and whitespace by '_', since they
+ * separate frames and the value.
+ */
+public final class PerfTrackFoldedStacks implements PerfTrackExporter.Sink {
+   final Node top=new Node(null);
+   long trees=0;
+
+   /** Merges a tree, same as add(), for use as a sink. */
+   public void export(PerfTrack.Item root) {
+      add(root);
+   }
+
+   /** Merges a completed tree into the graph. */
+   public synchronized void add(PerfTrack.Item root) {
+      if (root == null)
+         return;
+      add(top, root);
+      trees++;
+   }
+
+   /** Writes the merged graph, one line per path with self time. */
+   public synchronized void write(Appendable out) throws IOException {
+      StringBuilder path=new StringBuilder();
+      for (Node child:top.children()) {
+         write(child, path, out);
+      }
+   }
+
+   /** Returns the merged graph as a String. */
+   public String toString() {
+      StringBuilder sb=new StringBuilder();
+      try {
+         write(sb);
+      } catch (IOException ex) {
+         // not thrown by StringBuilder
+      }
+      return sb.toString();
+   }
+
+   /** Returns the number of trees merged. */
+   public synchronized long getTreeCount() {
+      return trees;
+   }
+
+   /** */
+   public synchronized void reset() {
+      top.children=null;
+      trees=0;
+   }
+
+   /** Writes one tree in folded form, a line per item with self time. */
+   public static void writeTree(PerfTrack.Item root, Appendable out) throws IOException {
+      if (root != null)
+         writeTree(root, new StringBuilder(), out);
+   }
+
+   static void writeTree(PerfTrack.Item item, StringBuilder path, Appendable out)
+      throws IOException {
+      int length=path.length();
+      appendFrame(item.name, path);
+      List<PerfTrack.Item> children=item.childList();
+      long self=item.etNanos;
+      for (int i=0; i<children.size(); i++) {
+         self-=children.get(i).etNanos;
+      }
+      writeLine(path, self, out);
+      for (int i=0; i<children.size(); i++) {
+         writeTree(children.get(i), path, out);
+      }
+      path.setLength(length);
+   }
+
+   static void add(Node parent, PerfTrack.Item item) {
+      Node node=parent.child(item.name);
+      List<PerfTrack.Item> children=item.childList();
+      long self=item.etNanos;
+      for (int i=0; i<children.size(); i++) {
+         PerfTrack.Item child=children.get(i);
+         self-=child.etNanos;
+         add(node, child);
+      }
+      // async children may overlap, and so outlast, their parent
+      if (self > 0)
+         node.selfNanos+=self;
+   }
+
+   static void write(Node node, StringBuilder path, Appendable out) throws IOException {
+      int length=path.length();
+      appendFrame(node.name, path);
+      writeLine(path, node.selfNanos, out);
+      for (Node child:node.children()) {
+         write(child, path, out);
+      }
+      path.setLength(length);
+   }
+
+   static void writeLine(StringBuilder path, long selfNanos, Appendable out)
+      throws IOException {
+      long micros=selfNanos/1000;
+      if (micros <= 0)
+         return;
+      out.append(path).append(' ').append(Long.toString(micros)).append('\n');
+   }
+
+   static void appendFrame(String name, StringBuilder path) {
+      if (path.length() > 0)
+         path.append(';');
+      for (int i=0; i<name.length(); i++) {
+         char c=name.charAt(i);
+         if (c == ';')
+            c=':';
+         else if (Character.isWhitespace(c))
+            c='_';
+         path.append(c);
+      }
+   }
+
+   /** A call path, children by name. */
+   static final class Node {
+      final String name;
+      Map<String, Node> children;
+      long selfNanos;
+
+      Node(String n) {
+         name=n;
+      }
+
+      Node child(String n) {
+         if (children == null)
+            children=new HashMap<String, Node>();
+         Node child=children.get(n);
+         if (child == null) {
+            child=new Node(n);
+            children.put(n, child);
+         }
+         return child;
+      }
+
+      Collection<Node> children() {
+         if (children == null)
+            return Collections.emptyList();
+         return children.values();
+      }
+   }
+}
@@ -0,0 +1,142 @@
+package net.jmatrix.utils;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+
+/**
+ * PerfTrackJfr records each PerfTrack item, including those of
+ * PerfTrackAspect and async spans, as a JDK Flight Recorder event, so
+ * PerfTrack timings line up with GC, lock and I/O events in one recording.
+ * See PerfTrackEvent for what each event carries.
+ *
+ * Off by default, turned on with -Dperftrack.jfr=true or setEnabled(true).
+ * Events are only begun while a recording is running, so with no
+ * recording an item pays for one volatile read.  Recording settings
+ * ("net.jmatrix.PerfTrack#enabled", "#threshold") apply as for any event.
+ *
+ * Flight Recorder needs a JVM with jdk.jfr (OpenJDK 8u272+, 11+), on other
+ * JVMs setEnabled() logs a warning and does nothing.  PerfTrackEvent is
+ * only built on JDK 11+, see its doc, and is reached through MethodHandles
+ * so this class builds for Java 8 and loads on any JVM.
+ */
+public final class PerfTrackJfr {
+   static Logger log=ClassLogFactory.getLog();
+
+   static final String EVENT_CLASS="net.jmatrix.utils.PerfTrackEvent";
+
+   /** PerfTrackEvent's static methods, all null if it or jdk.jfr is missing. */
+   static final MethodHandle REGISTER;
+   static final MethodHandle IS_RECORDING;
+   static final MethodHandle BEGIN;
+   static final MethodHandle END;
+
+   static {
+      MethodHandle register=null;
+      MethodHandle isRecording=null;
+      MethodHandle begin=null;
+      MethodHandle end=null;
+      try {
+         MethodHandles.Lookup lookup=MethodHandles.lookup();
+         // not initialized here, that would start Flight Recorder
+         Class<?> eventClass=Class.forName(EVENT_CLASS, false, PerfTrackJfr.class.getClassLoader());
+         register=lookup.findStatic(eventClass, "register",
+                                    MethodType.methodType(void.class));
+         isRecording=lookup.findStatic(eventClass, "isRecording",
+                                       MethodType.methodType(boolean.class));
+         begin=lookup.findStatic(eventClass, "begin",
+                                 MethodType.methodType(void.class, PerfTrack.Item.class, long.class));
+         end=lookup.findStatic(eventClass, "end",
+                               MethodType.methodType(void.class, PerfTrack.Item.class));
+      } catch (Throwable t) {
+         // no jdk.jfr, or built without the jfr profile
+         register=null;
+      }
+      REGISTER=register;
+      IS_RECORDING=isRecording;
+      BEGIN=begin;
+      END=end;
+   }
+
+   static final boolean available=REGISTER != null;
+
+   static volatile boolean enabled=false;
+
+   /** True while enabled and a recording is running. */
+   static volatile boolean active=false;
+
+   static final AtomicLong spanIds=new AtomicLong();
+
+   static {
+      if (Boolean.valueOf(System.getProperty("perftrack.jfr", "false")))
+         setEnabled(true);
+   }
+
+   /** True if this JVM has Flight Recorder. */
+   public static boolean isAvailable() {
+      return available;
+   }
+
+   /** */
+   public static boolean isEnabled() {
+      return enabled;
+   }
+
+   /** */
+   public static synchronized void setEnabled(boolean b) {
+      if (b && !available) {
+         log.warn("PerfTrack JFR events requested, but Flight Recorder is not available");
+         return;
+      }
+      if (b) {
+         try {
+            REGISTER.invokeExact();
+         } catch (Throwable t) {
+            log.warn("PerfTrack JFR events requested, but the event could not be registered", t);
+            return;
+         }
+      }
+      enabled=b;
+      update();
+   }
+
+   /** Re-checks for running recordings, called when one starts or stops. */
+   static void update() {
+      active=enabled && isRecording();
+   }
+
+   static void begin(PerfTrack.Item item) {
+      try {
+         BEGIN.invokeExact(item, spanIds.incrementAndGet());
+      } catch (RuntimeException ex) {
+         throw ex;
+      } catch (Throwable t) {
+         throw new IllegalStateException("Error beginning event", t);
+      }
+   }
+
+   static void end(PerfTrack.Item item) {
+      try {
+         END.invokeExact(item);
+      } catch (RuntimeException ex) {
+         throw ex;
+      } catch (Throwable t) {
+         throw new IllegalStateException("Error committing event", t);
+      } finally {
+         item.spanId=0;
+      }
+   }
+
+   static boolean isRecording() {
+      try {
+         return (boolean)IS_RECORDING.invokeExact();
+      } catch (RuntimeException ex) {
+         throw ex;
+      } catch (Throwable t) {
+         throw new IllegalStateException("Error listing recordings", t);
+      }
+   }
+}
@@ -0,0 +1,273 @@
+package net.jmatrix.utils;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+
+/**
+ * PerfTrackJmx registers MXBeans on the platform MBeanServer, so PerfTrack
+ * can be watched and tuned from JConsole, JMC or any JMX client:
+ * <ul>
+ * <li>net.jmatrix.perftrack:type=Control - trees in flight, exporter queue
+ *     depth and counts, sampling counts, and operations to change the
+ *     default and per-name thresholds, change sampling and reset counts.</li>
+ * <li>net.jmatrix.perftrack:type=Item,name="..." - one per item name in
+ *     PerfTrackStats, with count, errors and latency percentiles in
+ *     milliseconds.  Registered as names are first recorded.</li>
+ * </ul>
+ *
+ * Off by default.  Registered with -Dperftrack.jmx=true, once PerfTrack
+ * is first used, or by calling register().
+ */
+public final class PerfTrackJmx {
+   static Logger log=ClassLogFactory.getLog();
+
+   public static final String DOMAIN="net.jmatrix.perftrack";
+
+   static volatile boolean registered=false;
+
+   /** Item names with a registered MXBean. */
+   static final Set<String> itemNames=
+      Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+   static final PerfTrackStats.NameListener NAME_LISTENER=new PerfTrackStats.NameListener() {
+      public void nameAdded(String name) {
+         register(name);
+      }
+   };
+
+   static {
+      if (Boolean.valueOf(System.getProperty("perftrack.jmx", "false")))
+         register();
+   }
+
+   /** Called by PerfTrack's initializer, so this one has run. */
+   static void init() {
+   }
+
+   /** Registers the Control MXBean, and one for each name recorded so far. */
+   public static synchronized void register() {
+      if (registered)
+         return;
+      try {
+         getServer().registerMBean(new Control(), getControlName());
+      } catch (JMException ex) {
+         log.warn("Cannot register PerfTrack MXBean", ex);
+         return;
+      }
+      registered=true;
+      PerfTrackStats.nameListener=NAME_LISTENER;
+      for (String name:PerfTrackStats.getNames()) {
+         register(name);
+      }
+   }
+
+   /** Unregisters all PerfTrack MXBeans. */
+   public static synchronized void unregister() {
+      if (!registered)
+         return;
+      registered=false;
+      PerfTrackStats.nameListener=null;
+      MBeanServer server=getServer();
+      try {
+         server.unregisterMBean(getControlName());
+         for (String name:itemNames) {
+            server.unregisterMBean(getItemName(name));
+         }
+      } catch (JMException ex) {
+         log.warn("Cannot unregister PerfTrack MXBeans", ex);
+      }
+      itemNames.clear();
+   }
+
+   /** */
+   public static boolean isRegistered() {
+      return registered;
+   }
+
+   /** */
+   public static ObjectName getControlName() throws JMException {
+      return new ObjectName(DOMAIN+":type=Control");
+   }
+
+   /** */
+   public static ObjectName getItemName(String name) throws JMException {
+      return new ObjectName(DOMAIN+":type=Item,name="+ObjectName.quote(name));
+   }
+
+   /** Called as a name is first recorded in PerfTrackStats, once registered. */
+   static void register(String name) {
+      if (!itemNames.add(name))
+         return;
+      try {
+         getServer().registerMBean(new Item(name), getItemName(name));
+      } catch (JMException ex) {
+         log.warn("Cannot register PerfTrack MXBean for "+name, ex);
+      }
+   }
+
+   static MBeanServer getServer() {
+      return ManagementFactory.getPlatformMBeanServer();
+   }
+
+   static double millis(long nanos) {
+      return nanos/(double)PerfTrack.NANOS_PER_MILLI;
+   }
+
+   /** Process wide PerfTrack state and settings. */
+   public interface ControlMXBean {
+      long getDefaultThreshold();
+      void setDefaultThreshold(long millis);
+      int getMaxNodes();
+      void setMaxNodes(int max);
+      int getMaxDepth();
+      void setMaxDepth(int max);
+
+      long getInFlightCount();
+
+      boolean isStatsEnabled();
+      void setStatsEnabled(boolean b);
+      List<String> getItemNames();
+
+      boolean isExportEnabled();
+      void setExportEnabled(boolean b);
+      int getQueueDepth();
+      long getExportedCount();
+      long getDroppedCount();
+      long getExportFailedCount();
+
+      String getSamplingPolicy();
+      long getSampledCount();
+      long getUnsampledCount();
+
+      Map<String, Long> getThresholds();
+      /** Overrides the threshold of items named name, see PerfTrackThresholds. */
+      void setThreshold(String name, long millis);
+      void removeThreshold(String name);
+
+      /** Tracks a fraction, 0.0 to 1.0, of trees. */
+      void sampleRate(double rate);
+      /** Tracks about perSecond trees per second. */
+      void samplePerSecond(double perSecond);
+      /** Tracks every tree. */
+      void sampleAll();
+
+      /** Resets item stats, and exporter and sampling counts. */
+      void reset();
+      String summary();
+   }
+
+   /** Timings for one item name, in milliseconds. */
+   public interface ItemMXBean {
+      String getName();
+      long getCount();
+      long getErrors();
+      double getTotalMillis();
+      double getMeanMillis();
+      double getMinMillis();
+      double getMaxMillis();
+      double getP50Millis();
+      double getP90Millis();
+      double getP99Millis();
+      double getP999Millis();
+      /** Counter totals by name, see PerfTrackCounters. */
+      Map<String, Long> getCounters();
+   }
+
+   static final class Control implements ControlMXBean {
+      public long getDefaultThreshold() {return PerfTrack.getDefaultThreshold();}
+      public void setDefaultThreshold(long millis) {PerfTrack.setDefaultThreshold(millis);}
+      public int getMaxNodes() {return PerfTrack.getMaxNodes();}
+      public void setMaxNodes(int max) {PerfTrack.setMaxNodes(max);}
+      public int getMaxDepth() {return PerfTrack.getMaxDepth();}
+      public void setMaxDepth(int max) {PerfTrack.setMaxDepth(max);}
+
+      public long getInFlightCount() {return PerfTrack.getInFlightCount();}
+
+      public boolean isStatsEnabled() {return PerfTrackStats.isEnabled();}
+      public void setStatsEnabled(boolean b) {PerfTrackStats.setEnabled(b);}
+      public List<String> getItemNames() {return PerfTrackStats.getNames();}
+
+      public boolean isExportEnabled() {return PerfTrackExporter.isEnabled();}
+      public void setExportEnabled(boolean b) {PerfTrackExporter.setEnabled(b);}
+      public int getQueueDepth() {return PerfTrackExporter.getQueueDepth();}
+      public long getExportedCount() {return PerfTrackExporter.getExportedCount();}
+      public long getDroppedCount() {return PerfTrackExporter.getDroppedCount();}
+      public long getExportFailedCount() {return PerfTrackExporter.getFailedCount();}
+
+      public String getSamplingPolicy() {
+         PerfTrackSampler.Policy policy=PerfTrackSampler.getPolicy();
+         return policy == null ? "all" : policy.toString();
+      }
+      public long getSampledCount() {return PerfTrackSampler.getSampledCount();}
+      public long getUnsampledCount() {return PerfTrackSampler.getUnsampledCount();}
+
+      public Map<String, Long> getThresholds() {return PerfTrackThresholds.getOverrides();}
+      public void setThreshold(String name, long millis) {PerfTrackThresholds.set(name, millis);}
+      public void removeThreshold(String name) {PerfTrackThresholds.remove(name);}
+
+      public void sampleRate(double rate) {
+         PerfTrackSampler.setPolicy(PerfTrackSampler.fixedRate(rate));
+      }
+      public void samplePerSecond(double perSecond) {
+         PerfTrackSampler.setPolicy(PerfTrackSampler.adaptive(perSecond));
+      }
+      public void sampleAll() {
+         PerfTrackSampler.setPolicy(null);
+      }
+
+      public void reset() {
+         PerfTrackStats.reset();
+         PerfTrackExporter.resetCounts();
+         PerfTrackSampler.resetCounts();
+      }
+      public String summary() {return PerfTrackStats.summary();}
+   }
+
+   /** Reads the name's current Stat, so it follows PerfTrackStats.reset(). */
+   static final class Item implements ItemMXBean {
+      static final PerfTrackStats.Stat empty=new PerfTrackStats.Stat(null);
+
+      final String name;
+
+      Item(String n) {
+         name=n;
+      }
+
+      PerfTrackStats.Stat stat() {
+         PerfTrackStats.Stat stat=PerfTrackStats.getStat(name);
+         return stat == null ? empty : stat;
+      }
+
+      public String getName() {return name;}
+      public long getCount() {return stat().getCount();}
+      public long getErrors() {return stat().getErrors();}
+      public double getTotalMillis() {return millis(stat().getTotalNanos());}
+      public double getMeanMillis() {return millis(stat().getMeanNanos());}
+      public double getMinMillis() {return millis(stat().getMinNanos());}
+      public double getMaxMillis() {return millis(stat().getMaxNanos());}
+      public double getP50Millis() {return millis(stat().getP50Nanos());}
+      public double getP90Millis() {return millis(stat().getP90Nanos());}
+      public double getP99Millis() {return millis(stat().getP99Nanos());}
+      public double getP999Millis() {return millis(stat().getP999Nanos());}
+      public Map<String, Long> getCounters() {
+         PerfTrackStats.Stat stat=stat();
+         Map<String, Long> counters=new TreeMap<String, Long>();
+         for (int i=0; i<stat.counters.length(); i++) {
+            if (stat.counters.get(i) != null)
+               counters.put(PerfTrackCounters.getCounter(i).name, stat.getCounter(i));
+         }
+         return counters;
+      }
+   }
+}
@@ -0,0 +1,361 @@
+package net.jmatrix.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+import org.slf4j.Logger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * PerfTrackPrometheus serves PerfTrackStats, which includes every
+ * {@literal @}PerfTracked method, in the Prometheus text exposition format
+ * from the JDK's built in HTTP server, at /metrics:
+ * <pre>
+ *   perftrack_item_duration_seconds_bucket{name="OrderDao.insert",le="0.001048576"} 1520
+ *   perftrack_item_duration_seconds_sum{name="OrderDao.insert"} 2.317
+ *   perftrack_item_duration_seconds_count{name="OrderDao.insert"} 1604
+ *   perftrack_item_errors_total{name="OrderDao.insert"} 3
+ *   perftrack_item_counter_total{name="OrderDao.insert",counter="rows"} 1604
+ * </pre>
+ * plus trees in flight and exporter and sampling counts.  Bucket bounds
+ * are powers of two nanoseconds, 4us to 69s, which are exact bounds of
+ * the LatencyHistogram buckets, so cumulative counts are exact.
+ *
+ * A scrape reads the stats' LongAdders and histogram buckets, so it never
+ * blocks recording threads.  It renders into one buffer reused across
+ * scrapes, without allocating per name.  Scrapes are served one at a time.
+ *
+ * Off by default.  Started with -Dperftrack.prometheus.port, once
+ * PerfTrack is first used, or by calling start().  The server's threads
+ * are daemons.
+ */
+public final class PerfTrackPrometheus {
+   static Logger log=ClassLogFactory.getLog();
+
+   public static final String PATH="/metrics";
+   static final String CONTENT_TYPE="text/plain; version=0.0.4; charset=utf-8";
+
+   /** Bucket bounds, as powers of two nanoseconds. */
+   static final int FIRST_EXPONENT=12;
+   static final int LAST_EXPONENT=36;
+   static final int EXPONENT_STEP=2;
+
+   /** Index of the first LatencyHistogram bucket above each bound. */
+   static final int boundIndexes[];
+   /** The bounds as le label values, in seconds. */
+   static final byte boundLabels[][];
+   static {
+      int n=(LAST_EXPONENT-FIRST_EXPONENT)/EXPONENT_STEP+1;
+      boundIndexes=new int[n];
+      boundLabels=new byte[n][];
+      MetricsBuffer buffer=new MetricsBuffer();
+      for (int i=0; i<n; i++) {
+         long bound=1L << (FIRST_EXPONENT+i*EXPONENT_STEP);
+         boundIndexes[i]=LatencyHistogram.bucketIndex(bound);
+         buffer.reset();
+         buffer.appendSeconds(bound);
+         boundLabels[i]=buffer.toByteArray();
+      }
+   }
+
+   static final MetricsBuffer buffer=new MetricsBuffer();
+
+   static HttpServer server;
+
+   static {
+      Integer port=Integer.getInteger("perftrack.prometheus.port");
+      if (port != null) {
+         try {
+            start(port);
+         } catch (Exception ex) {
+            log.warn("Cannot start PerfTrack metrics on port "+port, ex);
+         }
+      }
+   }
+
+   /** Called by PerfTrack's initializer, so this one has run. */
+   static void init() {
+   }
+
+   /** Starts serving on port, on all interfaces. */
+   public static void start(int port) throws IOException {
+      start(new InetSocketAddress(port));
+   }
+
+   /** Starts serving on address.  Does nothing if already started. */
+   public static synchronized void start(InetSocketAddress address) throws IOException {
+      if (server != null)
+         return;
+      final HttpServer s=HttpServer.create(address, 0);
+      s.createContext(PATH, new MetricsHandler());
+      // threads take their daemon flag from their creator, so the server's
+      // dispatcher is started from a daemon thread, to not hold up exit
+      Thread starter=new Thread(new Runnable() {
+         public void run() {
+            s.start();
+         }
+      }, "PerfTrackPrometheus");
+      starter.setDaemon(true);
+      starter.start();
+      try {
+         starter.join();
+      } catch (InterruptedException ex) {
+         Thread.currentThread().interrupt();
+      }
+      server=s;
+      log.info("PerfTrack metrics on http://"+address.getHostString()+":"+
+               s.getAddress().getPort()+PATH);
+   }
+
+   /** Stops serving. */
+   public static synchronized void stop() {
+      if (server != null) {
+         server.stop(0);
+         server=null;
+      }
+   }
+
+   /** Returns the address served on, or null if not started. */
+   public static synchronized InetSocketAddress getAddress() {
+      return server == null ? null : server.getAddress();
+   }
+
+   /** Writes all metrics to out. */
+   public static void write(OutputStream out) throws IOException {
+      synchronized (buffer) {
+         render(buffer);
+         buffer.writeTo(out);
+      }
+   }
+
+   /** Returns all metrics as a String. */
+   public static String scrape() {
+      synchronized (buffer) {
+         render(buffer);
+         return buffer.text();
+      }
+   }
+
+   static void render(MetricsBuffer out) {
+      out.reset();
+      out.append("# HELP perftrack_item_duration_seconds PerfTrack item elapsed time.\n");
+      out.append("# TYPE perftrack_item_duration_seconds histogram\n");
+      for (PerfTrackStats.Stat stat:PerfTrackStats.stats.values()) {
+         renderHistogram(stat, out);
+      }
+      out.append("# HELP perftrack_item_errors_total PerfTrack items that threw.\n");
+      out.append("# TYPE perftrack_item_errors_total counter\n");
+      for (PerfTrackStats.Stat stat:PerfTrackStats.stats.values()) {
+         out.append("perftrack_item_errors_total{name=\"").appendLabel(stat.name);
+         out.append("\"} ").appendLong(stat.getErrors()).append('\n');
+      }
+      out.append("# HELP perftrack_item_counter_total PerfTrack item counters, see PerfTrackCounters.\n");
+      out.append("# TYPE perftrack_item_counter_total counter\n");
+      for (PerfTrackStats.Stat stat:PerfTrackStats.stats.values()) {
+         for (int i=0; i<stat.counters.length(); i++) {
+            if (stat.counters.get(i) == null)
+               continue;
+            out.append("perftrack_item_counter_total{name=\"").appendLabel(stat.name);
+            out.append("\",counter=\"").appendLabel(PerfTrackCounters.getCounter(i).name);
+            out.append("\"} ").appendLong(stat.getCounter(i)).append('\n');
+         }
+      }
+
+      renderGauge("perftrack_trees_in_flight", "PerfTrack trees started and not stopped.",
+                  PerfTrack.getInFlightCount(), out);
+      renderGauge("perftrack_export_queue_depth", "PerfTrack trees waiting to be exported.",
+                  PerfTrackExporter.getQueueDepth(), out);
+      renderCounter("perftrack_exported_total", "PerfTrack trees exported.",
+                    PerfTrackExporter.getExportedCount(), out);
+      renderCounter("perftrack_export_dropped_total", "PerfTrack trees dropped by a full queue.",
+                    PerfTrackExporter.getDroppedCount(), out);
+      renderCounter("perftrack_export_failed_total", "PerfTrack tree exports that threw.",
+                    PerfTrackExporter.getFailedCount(), out);
+      renderCounter("perftrack_sampled_total", "PerfTrack trees tracked by the sampler.",
+                    PerfTrackSampler.getSampledCount(), out);
+      renderCounter("perftrack_unsampled_total", "PerfTrack trees left out by the sampler.",
+                    PerfTrackSampler.getUnsampledCount(), out);
+   }
+
+   static void renderHistogram(PerfTrackStats.Stat stat, MetricsBuffer out) {
+      LatencyHistogram histogram=stat.histogram;
+      // counts come from one pass over the buckets, so they are consistent
+      // with each other even while items are being recorded
+      long cumulative=0;
+      int i=0;
+      for (int b=0; b<boundIndexes.length; b++) {
+         for (; i<boundIndexes[b]; i++) {
+            cumulative+=histogram.getBucketCount(i);
+         }
+         out.append("perftrack_item_duration_seconds_bucket{name=\"").appendLabel(stat.name);
+         out.append("\",le=\"").append(boundLabels[b]).append("\"} ");
+         out.appendLong(cumulative).append('\n');
+      }
+      for (; i<LatencyHistogram.BUCKET_COUNT; i++) {
+         cumulative+=histogram.getBucketCount(i);
+      }
+      out.append("perftrack_item_duration_seconds_bucket{name=\"").appendLabel(stat.name);
+      out.append("\",le=\"+Inf\"} ").appendLong(cumulative).append('\n');
+      out.append("perftrack_item_duration_seconds_sum{name=\"").appendLabel(stat.name);
+      out.append("\"} ").appendSeconds(stat.getTotalNanos()).append('\n');
+      out.append("perftrack_item_duration_seconds_count{name=\"").appendLabel(stat.name);
+      out.append("\"} ").appendLong(cumulative).append('\n');
+   }
+
+   static void renderGauge(String name, String help, long value, MetricsBuffer out) {
+      renderMetric(name, help, "gauge", value, out);
+   }
+
+   static void renderCounter(String name, String help, long value, MetricsBuffer out) {
+      renderMetric(name, help, "counter", value, out);
+   }
+
+   static void renderMetric(String name, String help, String type, long value,
+                            MetricsBuffer out) {
+      out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+      out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+      out.append(name).append(' ').appendLong(value).append('\n');
+   }
+
+   static final class MetricsHandler implements HttpHandler {
+      public void handle(HttpExchange exchange) throws IOException {
+         try {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+               exchange.sendResponseHeaders(405, -1);
+               return;
+            }
+            exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+            synchronized (buffer) {
+               render(buffer);
+               exchange.sendResponseHeaders(200, buffer.size());
+               buffer.writeTo(exchange.getResponseBody());
+            }
+         } catch (RuntimeException ex) {
+            log.warn("PerfTrack metrics scrape failed", ex);
+            exchange.sendResponseHeaders(500, -1);
+         } finally {
+            exchange.close();
+         }
+      }
+   }
+
+   /**
+    * A growable byte buffer with appends for ASCII text, escaped UTF-8
+    * label values and numbers, none of which allocate once it has grown.
+    */
+   static final class MetricsBuffer extends ByteArrayOutputStream {
+      final byte digits[]=new byte[20];
+
+      MetricsBuffer() {
+         super(64*1024);
+      }
+
+      String text() {
+         return new String(buf, 0, count, StandardCharsets.UTF_8);
+      }
+
+      /** Appends s, which must be ASCII. */
+      MetricsBuffer append(String s) {
+         for (int i=0; i<s.length(); i++) {
+            write(s.charAt(i));
+         }
+         return this;
+      }
+
+      MetricsBuffer append(char c) {
+         write(c);
+         return this;
+      }
+
+      MetricsBuffer append(byte b[]) {
+         write(b, 0, b.length);
+         return this;
+      }
+
+      /** Appends s as UTF-8, escaping \, " and newline as label values need. */
+      MetricsBuffer appendLabel(String s) {
+         for (int i=0; i<s.length(); i++) {
+            char c=s.charAt(i);
+            if (c == '\\' || c == '"') {
+               write('\\');
+               write(c);
+            } else if (c == '\n') {
+               write('\\');
+               write('n');
+            } else if (c < 0x80) {
+               write(c);
+            } else if (c < 0x800) {
+               write(0xc0 | (c >> 6));
+               write(0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i+1 < s.length() &&
+                       Character.isLowSurrogate(s.charAt(i+1))) {
+               int cp=Character.toCodePoint(c, s.charAt(++i));
+               write(0xf0 | (cp >> 18));
+               write(0x80 | ((cp >> 12) & 0x3f));
+               write(0x80 | ((cp >> 6) & 0x3f));
+               write(0x80 | (cp & 0x3f));
+            } else {
+               write(0xe0 | (c >> 12));
+               write(0x80 | ((c >> 6) & 0x3f));
+               write(0x80 | (c & 0x3f));
+            }
+         }
+         return this;
+      }
+
+      MetricsBuffer appendLong(long v) {
+         if (v < 0) {
+            if (v == Long.MIN_VALUE)
+               return append(Long.toString(v));
+            write('-');
+            v=-v;
+         }
+         int n=0;
+         do {
+            digits[n++]=(byte)('0'+v%10);
+            v/=10;
+         } while (v > 0);
+         while (n > 0) {
+            write(digits[--n]);
+         }
+         return this;
+      }
+
+      /** Appends nanos as seconds, with no trailing zeros. */
+      MetricsBuffer appendSeconds(long nanos) {
+         if (nanos < 0) {
+            write('-');
+            nanos=-nanos;
+         }
+         appendLong(nanos/1000000000L);
+         long fraction=nanos%1000000000L;
+         if (fraction != 0) {
+            write('.');
+            int places=9;
+            while (fraction%10 == 0) {
+               fraction/=10;
+               places--;
+            }
+            for (long p=pow10(places-1); p > fraction && p > 1; p/=10) {
+               write('0');
+            }
+            appendLong(fraction);
+         }
+         return this;
+      }
+
+      static long pow10(int n) {
+         long p=1;
+         while (n-- > 0) {
+            p*=10;
+         }
+         return p;
+      }
+   }
+}
@@ -0,0 +1,409 @@
+package net.jmatrix.utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+
+/**
+ * PerfTrackRecorder is a flight recorder for PerfTrack: every completed
+ * tree, fast or slow, is written into a fixed size ring of slots in a
+ * memory mapped file, overwriting the oldest.  The file holds the most
+ * recent trees at a fixed size, and since the pages belong to the OS it
+ * survives the JVM crashing and can be read afterwards with read(File).
+ *
+ * Trees are recorded with their names, timings, counters and throwables.
+ * Deferred labels (eg the aspects' method signatures) are not formatted
+ * for the recorder, so only the labels of trees that were dumped, which
+ * are already formatted, are recorded; see PerfTrack.completeRoot().
+ *
+ * On top of the file, each thread that records keeps its own encoding
+ * state: the encoder's 8K buffer, a buffer of up to one slot, and a
+ * snapshot that grows to the largest tree the thread has recorded (at most
+ * PerfTrack.maxNodes items).  These are never shrunk, so the memory used
+ * grows with the number of recording threads.  Virtual threads are not
+ * reused, so each one allocates this state afresh for the trees it
+ * records.
+ *
+ * Trees are recorded by the thread that completes them, without locks.  A
+ * sequence number from an AtomicLong picks the slot, and the tree is
+ * written there in the {@link PerfTrackEncoder} format, each slot a stream
+ * of its own.  Each slot starts with a header:
+ * <pre>
+ *   stamp  (long)  2*seq+1 while being written, 2*seq+2 once complete
+ *   length (int)   of the encoded tree
+ *   crc    (int)   CRC32 of the encoded tree
+ * </pre>
+ * A reader skips slots whose stamp is odd, changes while being read, or
+ * whose CRC does not match - eg one being written when the JVM died.
+ * Trees too large for a slot are dropped, as are trees whose slot is still
+ * being written by a thread that has been lapped.
+ *
+ * A recorder is installed with install(), or at startup by setting
+ * -Dperftrack.recorder.file, with -Dperftrack.recorder.slots (default
+ * 4096) and -Dperftrack.recorder.slotSize (default 4096 bytes).
+ */
+public final class PerfTrackRecorder implements Closeable {
+   static Logger log=ClassLogFactory.getLog();
+
+   static final int MAGIC=0x50544652; // "PTFR"
+   static final int VERSION=1;
+   static final int HEADER_SIZE=64;
+   static final int SLOT_HEADER_SIZE=16;
+   static final int MIN_SLOT_SIZE=64;
+
+   static volatile PerfTrackRecorder installed;
+   static {
+      String file=System.getProperty("perftrack.recorder.file");
+      if (file != null) {
+         try {
+            installed=open(new File(file),
+                           Integer.getInteger("perftrack.recorder.slots", 4096),
+                           Integer.getInteger("perftrack.recorder.slotSize", 4096));
+         } catch (Exception ex) {
+            log.warn("Cannot open PerfTrack recorder file "+file, ex);
+         }
+      }
+   }
+
+   final File file;
+   final MappedByteBuffer map;
+   final int slots;
+   final int slotSize;
+
+   final AtomicLong sequence=new AtomicLong();
+   /** In memory copy of each slot's stamp, used to claim slots. */
+   final AtomicLongArray stamps;
+
+   final LongAdder recorded=new LongAdder();
+   final LongAdder dropped=new LongAdder();
+   final LongAdder failed=new LongAdder();
+
+   volatile boolean closed=false;
+
+   final ThreadLocal<Writer> writer=new ThreadLocal<Writer>() {
+      protected Writer initialValue() {
+         return new Writer(map.duplicate(), slotSize-SLOT_HEADER_SIZE);
+      }
+   };
+
+   /**
+    * Opens or creates a ring file of slots slots of slotSize bytes each.
+    * An existing file with the same layout is continued, its trees are
+    * kept until overwritten.  Anything else is overwritten.
+    */
+   public static PerfTrackRecorder open(File file, int slots, int slotSize)
+      throws IOException {
+      if (slots <= 0 || slotSize < MIN_SLOT_SIZE)
+         throw new IllegalArgumentException("Bad PerfTrack recorder size: "+
+                                            slots+" slots of "+slotSize);
+      long size=HEADER_SIZE+(long)slots*slotSize;
+      if (size > Integer.MAX_VALUE)
+         throw new IllegalArgumentException("PerfTrack recorder file too large: "+size);
+
+      RandomAccessFile raf=new RandomAccessFile(file, "rw");
+      try {
+         // the mapping stays valid once the file is closed
+         MappedByteBuffer map=raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+         return new PerfTrackRecorder(file, map, slots, slotSize);
+      } finally {
+         raf.close();
+      }
+   }
+
+   PerfTrackRecorder(File f, MappedByteBuffer m, int slots, int slotSize) {
+      file=f;
+      map=m;
+      this.slots=slots;
+      this.slotSize=slotSize;
+      stamps=new AtomicLongArray(slots);
+
+      if (map.getInt(0) == MAGIC && map.getInt(4) == VERSION &&
+          map.getInt(8) == slots && map.getInt(12) == slotSize) {
+         long max=0;
+         for (int i=0; i<slots; i++) {
+            long stamp=map.getLong(slotOffset(i));
+            // a slot left half written is free to be claimed again
+            if ((stamp & 1) != 0)
+               stamp++;
+            stamps.set(i, stamp);
+            max=Math.max(max, stamp);
+         }
+         sequence.set(max/2);
+      } else {
+         map.putInt(0, MAGIC);
+         map.putInt(4, VERSION);
+         map.putInt(8, slots);
+         map.putInt(12, slotSize);
+         for (int i=0; i<slots; i++) {
+            map.putLong(slotOffset(i), 0);
+         }
+      }
+   }
+
+   /** Sets the recorder completed trees are written to, or null for none. */
+   public static void install(PerfTrackRecorder r) {
+      installed=r;
+   }
+
+   /** */
+   public static PerfTrackRecorder getInstalled() {
+      return installed;
+   }
+
+   /** Called by PerfTrack for each completed tree. */
+   static void recordRoot(PerfTrack.Item root) {
+      PerfTrackRecorder r=installed;
+      if (r != null)
+         r.record(root);
+   }
+
+   /**
+    * Writes a completed tree to the next slot.  Returns false if it was
+    * dropped.  Never throws, it is called on the request thread.
+    */
+   public boolean record(PerfTrack.Item root) {
+      if (closed || root == null)
+         return false;
+
+      Writer w=writer.get();
+      int length;
+      try {
+         length=w.encode(root);
+      } catch (Exception ex) {
+         failed.increment();
+         log.debug("Cannot record PerfTrack tree "+root.getName(), ex);
+         return false;
+      }
+      if (length > slotSize-SLOT_HEADER_SIZE) {
+         dropped.increment();
+         return false;
+      }
+
+      long seq=sequence.getAndIncrement();
+      int slot=(int)(seq%slots);
+      long writing=2*seq+1;
+      long stamp=stamps.get(slot);
+      // busy, or already holding a later tree from a thread that lapped us
+      if ((stamp & 1) != 0 || stamp >= writing ||
+          !stamps.compareAndSet(slot, stamp, writing)) {
+         dropped.increment();
+         return false;
+      }
+
+      int offset=slotOffset(slot);
+      ByteBuffer view=w.view;
+      view.putLong(offset, writing);
+      view.putInt(offset+8, length);
+      view.putInt(offset+12, w.crc(length));
+      view.position(offset+SLOT_HEADER_SIZE);
+      view.put(w.out.array(), 0, length);
+      view.putLong(offset, writing+1);
+      stamps.set(slot, writing+1);
+
+      recorded.increment();
+      return true;
+   }
+
+   /** Returns the trees currently in the ring, oldest first. */
+   public List<PerfTrack.Item> snapshot() {
+      return read(map.duplicate(), slots, slotSize);
+   }
+
+   /** Reads the trees in a ring file, eg after a crash, oldest first. */
+   public static List<PerfTrack.Item> read(File file) throws IOException {
+      RandomAccessFile raf=new RandomAccessFile(file, "r");
+      try {
+         MappedByteBuffer map=raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+         if (map.capacity() < HEADER_SIZE || map.getInt(0) != MAGIC)
+            throw new IOException("Not a PerfTrack recorder file: "+file);
+         if (map.getInt(4) != VERSION)
+            throw new IOException("Unsupported PerfTrack recorder version "+map.getInt(4));
+         int slots=map.getInt(8);
+         int slotSize=map.getInt(12);
+         if (HEADER_SIZE+(long)slots*slotSize > map.capacity())
+            throw new IOException("Truncated PerfTrack recorder file: "+file);
+         return read(map, slots, slotSize);
+      } finally {
+         raf.close();
+      }
+   }
+
+   static List<PerfTrack.Item> read(ByteBuffer map, int slots, int slotSize) {
+      List<long[]> entries=new ArrayList<long[]>();
+      List<byte[]> data=new ArrayList<byte[]>();
+      CRC32 crc=new CRC32();
+      for (int i=0; i<slots; i++) {
+         int offset=HEADER_SIZE+i*slotSize;
+         long stamp=map.getLong(offset);
+         if (stamp == 0 || (stamp & 1) != 0)
+            continue;
+         int length=map.getInt(offset+8);
+         int expected=map.getInt(offset+12);
+         if (length <= 0 || length > slotSize-SLOT_HEADER_SIZE)
+            continue;
+         byte bytes[]=new byte[length];
+         map.position(offset+SLOT_HEADER_SIZE);
+         map.get(bytes);
+         // overwritten while we were reading it
+         if (map.getLong(offset) != stamp)
+            continue;
+         crc.reset();
+         crc.update(bytes, 0, length);
+         if ((int)crc.getValue() != expected)
+            continue;
+         entries.add(new long[] {stamp, data.size()});
+         data.add(bytes);
+      }
+
+      Collections.sort(entries, new Comparator<long[]>() {
+         public int compare(long[] a, long[] b) {
+            return Long.compare(a[0], b[0]);
+         }
+      });
+      List<PerfTrack.Item> trees=new ArrayList<PerfTrack.Item>(entries.size());
+      for (long[] entry:entries) {
+         try {
+            byte bytes[]=data.get((int)entry[1]);
+            PerfTrackDecoder decoder=new PerfTrackDecoder(
+               new ByteArrayInputStream(bytes), bytes.length);
+            PerfTrack.Item root=decoder.read();
+            if (root != null)
+               trees.add(root);
+         } catch (IOException ex) {
+            log.debug("Skipping unreadable PerfTrack recorder slot", ex);
+         }
+      }
+      return trees;
+   }
+
+   /** Returns the number of trees written to the ring. */
+   public long getRecordedCount() {
+      return recorded.sum();
+   }
+
+   /** Returns the number of trees too large for a slot, or whose slot was busy. */
+   public long getDroppedCount() {
+      return dropped.sum();
+   }
+
+   /** Returns the number of trees that could not be encoded. */
+   public long getFailedCount() {
+      return failed.sum();
+   }
+
+   /** */
+   public File getFile() {
+      return file;
+   }
+
+   /** */
+   public int getSlots() {
+      return slots;
+   }
+
+   /** */
+   public int getSlotSize() {
+      return slotSize;
+   }
+
+   /**
+    * Stops recording, uninstalling the recorder if it is installed, and
+    * writes the ring to disk.  The file stays mapped until the recorder is
+    * garbage collected.
+    */
+   public void close() {
+      closed=true;
+      if (installed == this)
+         installed=null;
+      map.force();
+   }
+
+   int slotOffset(int slot) {
+      return HEADER_SIZE+slot*slotSize;
+   }
+
+   /** Per thread encoding state, so recording allocates nothing. */
+   static final class Writer {
+      final ByteBuffer view;
+      final SlotBuffer out;
+      final PerfTrackEncoder encoder;
+      final CRC32 crc=new CRC32();
+
+      Writer(ByteBuffer v, int limit) {
+         view=v;
+         out=new SlotBuffer(limit);
+         try {
+            encoder=new PerfTrackEncoder(out);
+         } catch (IOException ex) {
+            // nothing is written to out until flush()
+            throw new IllegalStateException(ex);
+         }
+         encoder.setFormatLabels(false);
+      }
+
+      /** Returns the encoded length, or Integer.MAX_VALUE if too large for a slot. */
+      int encode(PerfTrack.Item root) throws IOException {
+         out.reset();
+         encoder.restart();
+         encoder.write(root);
+         encoder.flush();
+         return out.overflow ? Integer.MAX_VALUE : out.size();
+      }
+
+      int crc(int length) {
+         crc.reset();
+         crc.update(out.array(), 0, length);
+         return (int)crc.getValue();
+      }
+   }
+
+   /** Holds up to one slot's data, discarding the rest of a larger tree. */
+   static final class SlotBuffer extends ByteArrayOutputStream {
+      final int limit;
+      boolean overflow;
+
+      SlotBuffer(int l) {
+         super(Math.min(l, 4096));
+         limit=l;
+      }
+
+      public void write(int b) {
+         if (count+1 > limit)
+            overflow=true;
+         else
+            super.write(b);
+      }
+
+      public void write(byte b[], int off, int len) {
+         if (count+len > limit)
+            overflow=true;
+         else
+            super.write(b, off, len);
+      }
+
+      public void reset() {
+         super.reset();
+         overflow=false;
+      }
+
+      byte[] array() {
+         return buf;
+      }
+   }
+}
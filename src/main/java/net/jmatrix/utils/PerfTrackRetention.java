@@ -0,0 +1,267 @@
+package net.jmatrix.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * PerfTrackRetention is a tail sampling stage for completed PerfTrack
+ * trees.  Once a root is complete, its full tree is kept if anything in it
+ * threw, or if the root was slower than the given percentile (default 99)
+ * of recent roots with the same name.  Everything else is only counted, so
+ * memory and log volume depend on the number of outliers, not on traffic.
+ *
+ * While enabled, retention replaces the threshold check done by
+ * completeRoot()'s callers (eg PerfTrackAspect): retained trees are the
+ * ones exported or logged, and the rest are cleared.  Kept trees are also
+ * held, newest last, in a bounded store read with getRetained().
+ *
+ * "Recent" is the previous window (default 60 seconds) of timings for the
+ * root name, so the cutoff follows changes in load.  Until a name has a
+ * full window with minSamples timings, its roots are kept if they are over
+ * their own threshold, as they would be without retention.
+ *
+ * Off by default.  Configured with -Dperftrack.retain=true and
+ * -Dperftrack.retain.percentile, .windowMillis, .minSamples, .capacity
+ * (kept trees) and .maxNames.
+ */
+public final class PerfTrackRetention {
+   /** Name that roots are counted under once maxNames is reached. */
+   public static final String OVERFLOW_NAME=PerfTrackStats.OVERFLOW_NAME;
+
+   static volatile boolean enabled=
+      Boolean.valueOf(System.getProperty("perftrack.retain", "false"));
+
+   static volatile double percentile=
+      Double.parseDouble(System.getProperty("perftrack.retain.percentile", "99"));
+
+   static volatile long windowNanos=TimeUnit.MILLISECONDS.toNanos(
+      Long.getLong("perftrack.retain.windowMillis", 60000));
+
+   static volatile int minSamples=
+      Integer.getInteger("perftrack.retain.minSamples", 100);
+
+   static volatile int capacity=
+      Integer.getInteger("perftrack.retain.capacity", 1000);
+
+   static volatile int maxNames=
+      Integer.getInteger("perftrack.retain.maxNames", 1000);
+
+   static final ConcurrentMap<String, RootWindow> windows=
+      new ConcurrentHashMap<String, RootWindow>();
+
+   static final ConcurrentLinkedDeque<PerfTrack.Item> retained=
+      new ConcurrentLinkedDeque<PerfTrack.Item>();
+   static final AtomicInteger retainedSize=new AtomicInteger();
+
+   static final LongAdder slowCount=new LongAdder();
+   static final LongAdder failedCount=new LongAdder();
+   static final LongAdder foldedCount=new LongAdder();
+   static final LongAdder evictedCount=new LongAdder();
+
+   /** */
+   public static boolean isEnabled() {
+      return enabled;
+   }
+
+   /** */
+   public static void setEnabled(boolean b) {
+      enabled=b;
+   }
+
+   /** Sets the percentile (0-100) a root must exceed to be kept. */
+   public static void setPercentile(double p) {
+      percentile=p;
+   }
+
+   /** */
+   public static double getPercentile() {
+      return percentile;
+   }
+
+   /** Sets the length of the window the percentile is taken over. */
+   public static void setWindowMillis(long millis) {
+      windowNanos=TimeUnit.MILLISECONDS.toNanos(millis);
+   }
+
+   /** Sets how many timings a window needs for its percentile to be used. */
+   public static void setMinSamples(int n) {
+      minSamples=n;
+   }
+
+   /** Sets the number of kept trees held, the oldest are evicted. */
+   public static void setCapacity(int c) {
+      capacity=c;
+   }
+
+   /** */
+   public static int getCapacity() {
+      return capacity;
+   }
+
+   /**
+    * Returns true if the complete tree under root should be kept, and
+    * counts it either way.  Called by PerfTrack as each root completes.
+    */
+   public static boolean shouldRetain(PerfTrack.Item root) {
+      RootWindow window=getOrCreate(root.getName());
+      long cutoff=window.record(root.etNanos, System.nanoTime());
+
+      boolean keep;
+      if (threw(root)) {
+         failedCount.increment();
+         keep=true;
+      } else if (cutoff >= 0 ? root.etNanos > cutoff : root.isOverThreshold()) {
+         slowCount.increment();
+         keep=true;
+      } else {
+         foldedCount.increment();
+         keep=false;
+      }
+      if (keep)
+         window.retained.increment();
+      else
+         window.folded.increment();
+      return keep;
+   }
+
+   /** Adds a detached tree to the store, evicting the oldest if it is full. */
+   public static void retain(PerfTrack.Item root) {
+      retained.addLast(root);
+      retainedSize.incrementAndGet();
+      // a loop, the capacity may have been lowered
+      while (retainedSize.get() > capacity && retained.pollFirst() != null) {
+         retainedSize.decrementAndGet();
+         evictedCount.increment();
+      }
+   }
+
+   /** Returns the kept trees, oldest first. */
+   public static List<PerfTrack.Item> getRetained() {
+      return new ArrayList<PerfTrack.Item>(retained);
+   }
+
+   /** Removes and returns the kept trees, oldest first. */
+   public static List<PerfTrack.Item> drainRetained() {
+      List<PerfTrack.Item> trees=new ArrayList<PerfTrack.Item>();
+      PerfTrack.Item root;
+      while ((root=retained.pollFirst()) != null) {
+         retainedSize.decrementAndGet();
+         trees.add(root);
+      }
+      return trees;
+   }
+
+   /**
+    * Returns the cutoff in nanoseconds currently used for roots named
+    * name, or -1 if there is none yet.
+    */
+   public static long getCutoffNanos(String name) {
+      RootWindow window=windows.get(name);
+      return window == null ? -1 : window.cutoffNanos;
+   }
+
+   /** Returns the number of roots kept for being slow. */
+   public static long getSlowCount() {
+      return slowCount.sum();
+   }
+
+   /** Returns the number of roots kept because something in the tree threw. */
+   public static long getFailedCount() {
+      return failedCount.sum();
+   }
+
+   /** Returns the number of roots counted but not kept. */
+   public static long getFoldedCount() {
+      return foldedCount.sum();
+   }
+
+   /** Returns the number of kept trees evicted from a full store. */
+   public static long getEvictedCount() {
+      return evictedCount.sum();
+   }
+
+   /** Returns the number of roots named name that were kept. */
+   public static long getRetainedCount(String name) {
+      RootWindow window=windows.get(name);
+      return window == null ? 0 : window.retained.sum();
+   }
+
+   /** Returns the number of roots named name that were only counted. */
+   public static long getFoldedCount(String name) {
+      RootWindow window=windows.get(name);
+      return window == null ? 0 : window.folded.sum();
+   }
+
+   /** Clears the kept trees, the windows and the counts. */
+   public static void reset() {
+      drainRetained();
+      windows.clear();
+      slowCount.reset();
+      failedCount.reset();
+      foldedCount.reset();
+      evictedCount.reset();
+   }
+
+   static boolean threw(PerfTrack.Item item) {
+      if (item.throwable != null)
+         return true;
+      List<PerfTrack.Item> children=item.childList();
+      for (int i=0; i<children.size(); i++) {
+         if (threw(children.get(i)))
+            return true;
+      }
+      return false;
+   }
+
+   static RootWindow getOrCreate(String name) {
+      RootWindow window=windows.get(name);
+      if (window == null) {
+         if (windows.size() >= maxNames)
+            name=OVERFLOW_NAME;
+         window=new RootWindow();
+         RootWindow existing=windows.putIfAbsent(name, window);
+         if (existing != null)
+            window=existing;
+      }
+      return window;
+   }
+
+   /**
+    * Timings for one root name in the current window.  The cutoff is
+    * taken from the previous window when it ends, so it is computed once
+    * per window rather than per root.
+    */
+   static final class RootWindow {
+      volatile LatencyHistogram current=new LatencyHistogram();
+      volatile long windowStart=System.nanoTime();
+      volatile long cutoffNanos=-1;
+
+      final LongAdder retained=new LongAdder();
+      final LongAdder folded=new LongAdder();
+
+      /** Records a timing, returns the cutoff to compare it against. */
+      long record(long nanos, long now) {
+         long start=windowStart;
+         if (now-start >= windowNanos)
+            nextWindow(start, now);
+         current.record(nanos);
+         return cutoffNanos;
+      }
+
+      synchronized void nextWindow(long start, long now) {
+         if (windowStart != start)
+            return;
+         LatencyHistogram previous=current;
+         current=new LatencyHistogram();
+         windowStart=now;
+         if (previous.getCount() >= minSamples)
+            cutoffNanos=previous.getValueAtPercentile(percentile);
+      }
+   }
+}
@@ -0,0 +1,198 @@
+package net.jmatrix.utils;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * PerfTrackSampler decides, when a new root item is started, whether its
+ * tree is tracked at all.  In a tree that is not sampled every start() and
+ * stop() only counts its depth - no Items are created, no names looked up
+ * and no tree is logged, exported or recorded - so PerfTrack can be left
+ * on under high request rates.
+ *
+ * The policy is one of:
+ * <ul>
+ * <li>fixedRate(rate) - samples a fraction of roots, 0.0 to 1.0</li>
+ * <li>PerName - a rate per root name, with a default for the rest</li>
+ * <li>adaptive(perSecond) - adjusts the rate each second to sample about
+ *     perSecond trees a second</li>
+ * </ul>
+ * With no policy (the default) every tree is tracked.  A policy can be set
+ * at startup with -Dperftrack.sample.rate=0.01 or
+ * -Dperftrack.sample.perSecond=100.
+ *
+ * Sampling happens at the head - a tree that is not sampled is not known
+ * to be slow or failed.  Trees that must always be seen should be given a
+ * rate of 1.0 by name.
+ */
+public final class PerfTrackSampler {
+
+   /** Decides whether a tree with the given root name is tracked. */
+   public interface Policy {
+      boolean sample(String rootName);
+   }
+
+   static volatile Policy policy=null;
+   static {
+      String rate=System.getProperty("perftrack.sample.rate");
+      String perSecond=System.getProperty("perftrack.sample.perSecond");
+      if (perSecond != null)
+         policy=adaptive(Double.parseDouble(perSecond));
+      else if (rate != null)
+         policy=fixedRate(Double.parseDouble(rate));
+   }
+
+   static final LongAdder sampled=new LongAdder();
+   static final LongAdder unsampled=new LongAdder();
+
+   /** Sets the policy, null to track every tree. */
+   public static void setPolicy(Policy p) {
+      policy=p;
+   }
+
+   /** */
+   public static Policy getPolicy() {
+      return policy;
+   }
+
+   /** Called by PerfTrack when a root is started. */
+   static boolean sample(String rootName) {
+      Policy p=policy;
+      if (p == null)
+         return true;
+      if (p.sample(rootName)) {
+         sampled.increment();
+         return true;
+      }
+      unsampled.increment();
+      return false;
+   }
+
+   /** Returns the number of roots tracked while a policy was set. */
+   public static long getSampledCount() {
+      return sampled.sum();
+   }
+
+   /** Returns the number of roots not tracked. */
+   public static long getUnsampledCount() {
+      return unsampled.sum();
+   }
+
+   /** */
+   public static void resetCounts() {
+      sampled.reset();
+      unsampled.reset();
+   }
+
+   /** Samples a fraction of roots, 0.0 (none) to 1.0 (all). */
+   public static Policy fixedRate(double rate) {
+      return new FixedRate(rate);
+   }
+
+   /** Samples about perSecond trees per second, across all root names. */
+   public static Policy adaptive(double perSecond) {
+      return new Adaptive(perSecond);
+   }
+
+   static boolean sample(double rate) {
+      return rate >= 1.0 || (rate > 0 && ThreadLocalRandom.current().nextDouble() < rate);
+   }
+
+   static final class FixedRate implements Policy {
+      final double rate;
+
+      FixedRate(double r) {
+         rate=r;
+      }
+
+      public boolean sample(String rootName) {
+         return PerfTrackSampler.sample(rate);
+      }
+
+      public String toString() {
+         return "FixedRate("+rate+")";
+      }
+   }
+
+   /** A rate per root name, with defaultRate for names that have none. */
+   public static final class PerName implements Policy {
+      final ConcurrentMap<String, Double> rates=new ConcurrentHashMap<String, Double>();
+      volatile double defaultRate;
+
+      public PerName(double defaultRate) {
+         this.defaultRate=defaultRate;
+      }
+
+      /** */
+      public PerName set(String rootName, double rate) {
+         rates.put(rootName, rate);
+         return this;
+      }
+
+      /** */
+      public void remove(String rootName) {
+         rates.remove(rootName);
+      }
+
+      /** */
+      public void setDefaultRate(double rate) {
+         defaultRate=rate;
+      }
+
+      public boolean sample(String rootName) {
+         Double rate=rates.get(rootName);
+         return PerfTrackSampler.sample(rate == null ? defaultRate : rate);
+      }
+
+      public String toString() {
+         return "PerName("+rates+", default="+defaultRate+")";
+      }
+   }
+
+   /**
+    * Counts the roots seen each second and sets the rate for the next
+    * second to perSecond divided by that count, so the sampled trees are
+    * spread over the second rather than being its first perSecond.
+    */
+   static final class Adaptive implements Policy {
+      static final long WINDOW_NANOS=TimeUnit.SECONDS.toNanos(1);
+
+      final double perSecond;
+      final LongAdder seen=new LongAdder();
+      volatile long windowStart=System.nanoTime();
+      volatile double rate=1.0;
+
+      Adaptive(double perSecond) {
+         this.perSecond=perSecond;
+      }
+
+      public boolean sample(String rootName) {
+         long start=windowStart;
+         long now=System.nanoTime();
+         if (now-start >= WINDOW_NANOS)
+            nextWindow(start, now);
+         seen.increment();
+         return PerfTrackSampler.sample(rate);
+      }
+
+      synchronized void nextWindow(long start, long now) {
+         if (windowStart != start)
+            return;
+         double observed=seen.sumThenReset()*(double)WINDOW_NANOS/(now-start);
+         rate=observed <= perSecond ? 1.0 : perSecond/observed;
+         windowStart=now;
+      }
+
+      /** The rate in use for the current second. */
+      double getRate() {
+         return rate;
+      }
+
+      public String toString() {
+         return "Adaptive("+perSecond+"/s, rate="+rate+")";
+      }
+   }
+}
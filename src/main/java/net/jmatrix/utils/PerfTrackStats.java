@@ -0,0 +1,255 @@
+package net.jmatrix.utils;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+
+/**
+ * PerfTrackStats is a process wide aggregation of PerfTrack timings.  Every
+ * PerfTrack item that is stopped is recorded here by name, so that counts,
+ * totals, min/max and latency percentiles survive after the individual
+ * PerfTrack tree has been logged and cleared.
+ *
+ * Recording is lock free - counters are LongAdders, min/max are maintained
+ * with compare-and-set, and the histogram buckets are LongAdders - so
+ * request threads completing trees at the same time do not contend.
+ *
+ * Statistics are cumulative since startup or the last reset().  To
+ * report on an interval (eg the last hour), read and reset on a schedule.
+ *
+ * Stats are enabled by default and can be turned off with
+ * -Dperftrack.stats=false or setEnabled(false).
+ */
+public final class PerfTrackStats {
+   static Logger log=ClassLogFactory.getLog();
+
+   /** Name under which items are recorded once maxNames is reached. */
+   public static final String OVERFLOW_NAME="<other>";
+
+   static volatile boolean enabled=
+      Boolean.valueOf(System.getProperty("perftrack.stats", "true"));
+
+   static volatile int maxNames=
+      Integer.getInteger("perftrack.stats.maxNames", 10000);
+
+   static final ConcurrentMap<String, Stat> stats=new ConcurrentHashMap<String, Stat>();
+
+   /** Told of each name as it is first recorded, eg by PerfTrackJmx. */
+   interface NameListener {
+      void nameAdded(String name);
+   }
+
+   static volatile NameListener nameListener;
+
+   /** */
+   public static boolean isEnabled() {
+      return enabled;
+   }
+
+   /** */
+   public static void setEnabled(boolean b) {
+      enabled=b;
+   }
+
+   /**
+    * Sets the maximum number of distinct names tracked.  This guards against
+    * unbounded growth if item names are built from request data.
+    */
+   public static void setMaxNames(int max) {
+      maxNames=max;
+   }
+
+   /** Records one timing for the named item. */
+   public static void record(String name, long nanos, boolean error) {
+      record(name, nanos, error, null);
+   }
+
+   /**
+    * Records one timing for the named item, and adds counters, indexed by
+    * PerfTrackCounters slot, to the name's totals.  counters may be null.
+    */
+   public static void record(String name, long nanos, boolean error, long counters[]) {
+      if (!enabled || name == null)
+         return;
+      Stat stat=getOrCreate(name);
+      stat.record(nanos, error);
+      if (counters != null)
+         stat.add(counters);
+   }
+
+   /** Returns the Stat for name, or null if nothing was recorded for it. */
+   public static Stat getStat(String name) {
+      return stats.get(name);
+   }
+
+   /** Returns the names that have been recorded, sorted. */
+   public static List<String> getNames() {
+      List<String> names=new ArrayList<String>(stats.keySet());
+      Collections.sort(names);
+      return names;
+   }
+
+   /** Returns a live view of all stats. */
+   public static Collection<Stat> getStats() {
+      return Collections.unmodifiableCollection(stats.values());
+   }
+
+   /** Discards all recorded statistics. */
+   public static void reset() {
+      stats.clear();
+   }
+
+   /** Returns a multi-line summary of all stats, one name per line. */
+   public static String summary() {
+      StringBuilder sb=new StringBuilder();
+      for (String name:getNames()) {
+         Stat stat=stats.get(name);
+         if (stat != null)
+            sb.append(stat).append("\n");
+      }
+      return sb.toString();
+   }
+
+   static Stat getOrCreate(String name) {
+      Stat stat=stats.get(name);
+      if (stat == null) {
+         if (stats.size() >= maxNames) {
+            if (!OVERFLOW_NAME.equals(name) && stats.get(OVERFLOW_NAME) == null)
+               log.warn("PerfTrackStats: more than "+maxNames+" names, further names "+
+                        "are recorded as "+OVERFLOW_NAME);
+            name=OVERFLOW_NAME;
+            stat=stats.get(name);
+            if (stat != null)
+               return stat;
+         }
+         stat=new Stat(name);
+         Stat existing=stats.putIfAbsent(name, stat);
+         if (existing != null) {
+            stat=existing;
+         } else {
+            NameListener listener=nameListener;
+            if (listener != null)
+               listener.nameAdded(name);
+         }
+      }
+      return stat;
+   }
+
+   /** Aggregated statistics for one item name. */
+   public static final class Stat {
+      final String name;
+      final LongAdder count=new LongAdder();
+      final LongAdder errors=new LongAdder();
+      final LongAdder totalNanos=new LongAdder();
+      final AtomicLong minNanos=new AtomicLong(Long.MAX_VALUE);
+      final AtomicLong maxNanos=new AtomicLong(Long.MIN_VALUE);
+      final LatencyHistogram histogram=new LatencyHistogram();
+      /** Counter totals by slot, each created when first added to. */
+      final AtomicReferenceArray<LongAdder> counters=
+         new AtomicReferenceArray<LongAdder>(PerfTrackCounters.MAX_COUNTERS);
+
+      Stat(String n) {
+         name=n;
+      }
+
+      void record(long nanos, boolean error) {
+         count.increment();
+         totalNanos.add(nanos);
+         if (error)
+            errors.increment();
+         histogram.record(nanos);
+
+         long min=minNanos.get();
+         while (nanos < min && !minNanos.compareAndSet(min, nanos))
+            min=minNanos.get();
+         long max=maxNanos.get();
+         while (nanos > max && !maxNanos.compareAndSet(max, nanos))
+            max=maxNanos.get();
+      }
+
+      void add(long values[]) {
+         for (int i=0; i<values.length; i++) {
+            if (values[i] == 0)
+               continue;
+            LongAdder counter=counters.get(i);
+            if (counter == null) {
+               counters.compareAndSet(i, null, new LongAdder());
+               counter=counters.get(i);
+            }
+            counter.add(values[i]);
+         }
+      }
+
+      /** Returns the total of the counter over all items with this name. */
+      public long getCounter(PerfTrackCounters.Counter counter) {
+         return counter.slot < 0 ? 0 : getCounter(counter.slot);
+      }
+
+      /** Returns the total of the counter in slot, see PerfTrackCounters.getCounter(int). */
+      public long getCounter(int slot) {
+         LongAdder counter=counters.get(slot);
+         return counter == null ? 0 : counter.sum();
+      }
+
+      public String getName() {return name;}
+      public long getCount() {return count.sum();}
+      public long getErrors() {return errors.sum();}
+      public long getTotalNanos() {return totalNanos.sum();}
+      public LatencyHistogram getHistogram() {return histogram;}
+
+      public long getMinNanos() {
+         long min=minNanos.get();
+         return min == Long.MAX_VALUE ? 0 : min;
+      }
+
+      public long getMaxNanos() {
+         long max=maxNanos.get();
+         return max == Long.MIN_VALUE ? 0 : max;
+      }
+
+      public long getMeanNanos() {
+         long c=getCount();
+         return c == 0 ? 0 : getTotalNanos()/c;
+      }
+
+      /** Returns the value at a percentile (0-100), never more than max. */
+      public long getPercentileNanos(double percentile) {
+         return Math.min(histogram.getValueAtPercentile(percentile), getMaxNanos());
+      }
+
+      public long getP50Nanos() {return getPercentileNanos(50);}
+      public long getP90Nanos() {return getPercentileNanos(90);}
+      public long getP99Nanos() {return getPercentileNanos(99);}
+      public long getP999Nanos() {return getPercentileNanos(99.9);}
+
+      public String toString() {
+         return name+" count="+getCount()+" errors="+getErrors()+
+            " mean="+micros(getMeanNanos())+" min="+micros(getMinNanos())+
+            " max="+micros(getMaxNanos())+" p50="+micros(getP50Nanos())+
+            " p90="+micros(getP90Nanos())+" p99="+micros(getP99Nanos())+
+            " p999="+micros(getP999Nanos())+counterString();
+      }
+
+      String counterString() {
+         StringBuilder sb=new StringBuilder();
+         for (int i=0; i<counters.length(); i++) {
+            LongAdder counter=counters.get(i);
+            if (counter != null)
+               sb.append(' ').append(PerfTrackCounters.getCounter(i).name).append('=').append(counter.sum());
+         }
+         return sb.toString();
+      }
+
+      static String micros(long nanos) {
+         return (nanos/1000)+"us";
+      }
+   }
+}
@@ -0,0 +1,56 @@
+package net.jmatrix.utils;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * PerfTrackThresholds holds runtime overrides of PerfTrack thresholds by
+ * item name, eg "OrderService.placeOrder", so that which trees get dumped
+ * can be tuned in a running process without redeploying.
+ *
+ * An override replaces the threshold coded in the @PerfTracked annotation
+ * for that name.  As with the annotation, a negative threshold turns
+ * tracking off for the item.
+ *
+ * Lookups are a single ConcurrentHashMap get, and are skipped entirely
+ * while no overrides are set.
+ */
+public final class PerfTrackThresholds {
+   static final ConcurrentMap<String, Long> overrides=new ConcurrentHashMap<String, Long>();
+
+   /** Sets the threshold in milliseconds for the named item. */
+   public static void set(String name, long threshold) {
+      overrides.put(name, threshold);
+   }
+
+   /** Removes the override for the named item. */
+   public static void remove(String name) {
+      overrides.remove(name);
+   }
+
+   /** Removes all overrides. */
+   public static void clear() {
+      overrides.clear();
+   }
+
+   /** Returns the override for the named item, or null if there isn't one. */
+   public static Long get(String name) {
+      return overrides.get(name);
+   }
+
+   /** Returns the threshold to use for name, defaultThreshold if not overridden. */
+   public static long resolve(String name, long defaultThreshold) {
+      if (overrides.isEmpty())
+         return defaultThreshold;
+      Long threshold=overrides.get(name);
+      return threshold == null ? defaultThreshold : threshold;
+   }
+
+   /** Returns a sorted copy of all overrides. */
+   public static Map<String, Long> getOverrides() {
+      return Collections.unmodifiableMap(new TreeMap<String, Long>(overrides));
+   }
+}
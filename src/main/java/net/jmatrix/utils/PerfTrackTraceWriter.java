@@ -0,0 +1,267 @@
+package net.jmatrix.utils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+/**
+ * PerfTrackTraceWriter streams completed PerfTrack trees as JSON that
+ * tracing tools load, written with a Jackson JsonGenerator so no tree is
+ * built up as a String:
+ * <ul>
+ * <li>CHROME - Chrome trace events (chrome://tracing, Perfetto, speedscope).
+ *     Each item is a complete ("X") event with microsecond timestamps, and
+ *     each tree gets its own row, named after its root.  The output is the
+ *     JSON array form, which may be loaded before close() writes the
+ *     closing bracket.</li>
+ * <li>OTLP - OpenTelemetry OTLP/JSON, one ExportTraceServiceRequest per
+ *     line, as read by the collector's otlpjsonfile receiver.  Each tree is
+ *     a trace, each item a span with its parent's span id.  A throwable
+ *     sets the span's status to error and adds an "exception" event.</li>
+ * </ul>
+ * Item ids, thresholds, labels, merged call counts, and counters and tags
+ * (see PerfTrackCounters) are written as event args / span attributes.
+ *
+ * Register with PerfTrackExporter.addSink() to write every exported tree,
+ * each tree is flushed as it is written.
+ */
+public final class PerfTrackTraceWriter implements PerfTrackExporter.Sink, Closeable {
+   /** */
+   public enum Format {CHROME, OTLP}
+
+   static final JsonFactory jsonFactory=new JsonFactory();
+
+   static final String SCOPE_NAME="net.jmatrix.PerfTrack";
+   static final int SPAN_KIND_INTERNAL=1;
+   static final int STATUS_CODE_ERROR=2;
+
+   final JsonGenerator generator;
+   final Format format;
+   final String serviceName;
+   int trees=0;
+
+   /** */
+   public PerfTrackTraceWriter(OutputStream out, Format format) throws IOException {
+      this(out, format, "perftrack");
+   }
+
+   /** serviceName is the OTLP service.name resource attribute. */
+   public PerfTrackTraceWriter(OutputStream out, Format format, String serviceName)
+      throws IOException {
+      this.format=format;
+      this.serviceName=serviceName;
+      generator=jsonFactory.createGenerator(out, JsonEncoding.UTF8);
+      // OTLP trees are separated by newlines, written after each one
+      generator.setRootValueSeparator(null);
+      if (format == Format.CHROME)
+         generator.writeStartArray();
+   }
+
+   /** Writes and flushes a tree. */
+   public synchronized void export(PerfTrack.Item root) throws IOException {
+      write(root);
+      generator.flush();
+   }
+
+   /** Writes a tree, without flushing. */
+   public synchronized void write(PerfTrack.Item root) throws IOException {
+      if (root == null)
+         return;
+      trees++;
+      if (format == Format.CHROME) {
+         writeChromeThreadName(root);
+         writeChrome(root, root);
+      } else {
+         writeOtlp(root);
+      }
+   }
+
+   /** */
+   public synchronized void flush() throws IOException {
+      generator.flush();
+   }
+
+   /** Finishes the output and closes the stream. */
+   public synchronized void close() throws IOException {
+      if (format == Format.CHROME)
+         generator.writeEndArray();
+      generator.close();
+   }
+
+   /** Names the row the tree is drawn in after its root. */
+   void writeChromeThreadName(PerfTrack.Item root) throws IOException {
+      generator.writeStartObject();
+      generator.writeStringField("name", "thread_name");
+      generator.writeStringField("ph", "M");
+      generator.writeNumberField("pid", 0);
+      generator.writeNumberField("tid", trees);
+      generator.writeObjectFieldStart("args");
+      generator.writeStringField("name", root.name);
+      generator.writeEndObject();
+      generator.writeEndObject();
+   }
+
+   void writeChrome(PerfTrack.Item item, PerfTrack.Item root) throws IOException {
+      generator.writeStartObject();
+      generator.writeStringField("name", item.getDisplayName());
+      generator.writeStringField("cat", "PerfTrack");
+      generator.writeStringField("ph", "X");
+      generator.writeNumberField("ts", startNanos(item, root)/1000);
+      generator.writeNumberField("dur", item.etNanos/1000);
+      generator.writeNumberField("pid", 0);
+      generator.writeNumberField("tid", trees);
+      generator.writeObjectFieldStart("args");
+      if (item.id != null && !item.id.equals(item.name))
+         generator.writeStringField("id", item.id);
+      generator.writeNumberField("threshold", item.threshold);
+      if (item.merged)
+         generator.writeNumberField("count", item.count);
+      if (item.throwable != null)
+         generator.writeStringField("throwable", item.getThrowableClassName());
+      long counters[]=item.counters;
+      for (int i=0; counters != null && i<counters.length; i++) {
+         if (counters[i] != 0)
+            generator.writeNumberField(PerfTrackCounters.getCounter(i).name, counters[i]);
+      }
+      String tags[]=item.tags;
+      for (int i=0; tags != null && i<tags.length; i++) {
+         if (tags[i] != null)
+            generator.writeStringField(PerfTrackCounters.getTag(i).name, tags[i]);
+      }
+      generator.writeEndObject();
+      generator.writeEndObject();
+
+      List<PerfTrack.Item> children=item.childList();
+      for (int i=0; i<children.size(); i++) {
+         writeChrome(children.get(i), root);
+      }
+   }
+
+   void writeOtlp(PerfTrack.Item root) throws IOException {
+      ThreadLocalRandom random=ThreadLocalRandom.current();
+      String traceId=hex(random.nextLong())+hex(random.nextLong());
+
+      generator.writeStartObject();
+      generator.writeArrayFieldStart("resourceSpans");
+      generator.writeStartObject();
+      generator.writeObjectFieldStart("resource");
+      generator.writeArrayFieldStart("attributes");
+      writeAttribute("service.name", serviceName);
+      generator.writeEndArray();
+      generator.writeEndObject();
+      generator.writeArrayFieldStart("scopeSpans");
+      generator.writeStartObject();
+      generator.writeObjectFieldStart("scope");
+      generator.writeStringField("name", SCOPE_NAME);
+      generator.writeEndObject();
+      generator.writeArrayFieldStart("spans");
+      writeOtlpSpan(root, root, traceId, null, random);
+      generator.writeEndArray();
+      generator.writeEndObject();
+      generator.writeEndArray();
+      generator.writeEndObject();
+      generator.writeEndArray();
+      generator.writeEndObject();
+      generator.writeRaw('\n');
+   }
+
+   void writeOtlpSpan(PerfTrack.Item item, PerfTrack.Item root, String traceId,
+                      String parentSpanId, ThreadLocalRandom random) throws IOException {
+      String spanId=hex(random.nextLong());
+      long start=startNanos(item, root);
+
+      generator.writeStartObject();
+      generator.writeStringField("traceId", traceId);
+      generator.writeStringField("spanId", spanId);
+      if (parentSpanId != null)
+         generator.writeStringField("parentSpanId", parentSpanId);
+      generator.writeStringField("name", item.name);
+      generator.writeNumberField("kind", SPAN_KIND_INTERNAL);
+      // 64 bit integers are strings in the protobuf JSON mapping
+      generator.writeStringField("startTimeUnixNano", Long.toString(start));
+      generator.writeStringField("endTimeUnixNano", Long.toString(start+item.etNanos));
+
+      generator.writeArrayFieldStart("attributes");
+      if (item.id != null && !item.id.equals(item.name))
+         writeAttribute("perftrack.id", item.id);
+      if (item.label != null)
+         writeAttribute("perftrack.label", item.label.toString());
+      writeAttribute("perftrack.threshold_ms", item.threshold);
+      if (item.merged)
+         writeAttribute("perftrack.count", item.count);
+      long counters[]=item.counters;
+      for (int i=0; counters != null && i<counters.length; i++) {
+         if (counters[i] != 0)
+            writeAttribute(PerfTrackCounters.getCounter(i).name, counters[i]);
+      }
+      String tags[]=item.tags;
+      for (int i=0; tags != null && i<tags.length; i++) {
+         if (tags[i] != null)
+            writeAttribute(PerfTrackCounters.getTag(i).name, tags[i]);
+      }
+      generator.writeEndArray();
+
+      if (item.throwable != null) {
+         generator.writeArrayFieldStart("events");
+         generator.writeStartObject();
+         generator.writeStringField("name", "exception");
+         generator.writeStringField("timeUnixNano", Long.toString(start+item.etNanos));
+         generator.writeArrayFieldStart("attributes");
+         writeAttribute("exception.type", item.getThrowableClassName());
+         if (item.throwable.getMessage() != null &&
+             !(item.throwable instanceof PerfTrackDecoder.DecodedThrowable))
+            writeAttribute("exception.message", item.throwable.getMessage());
+         generator.writeEndArray();
+         generator.writeEndObject();
+         generator.writeEndArray();
+
+         generator.writeObjectFieldStart("status");
+         generator.writeNumberField("code", STATUS_CODE_ERROR);
+         generator.writeStringField("message", item.getThrowableClassName());
+         generator.writeEndObject();
+      }
+      generator.writeEndObject();
+
+      List<PerfTrack.Item> children=item.childList();
+      for (int i=0; i<children.size(); i++) {
+         writeOtlpSpan(children.get(i), root, traceId, spanId, random);
+      }
+   }
+
+   void writeAttribute(String key, String value) throws IOException {
+      generator.writeStartObject();
+      generator.writeStringField("key", key);
+      generator.writeObjectFieldStart("value");
+      generator.writeStringField("stringValue", value);
+      generator.writeEndObject();
+      generator.writeEndObject();
+   }
+
+   void writeAttribute(String key, long value) throws IOException {
+      generator.writeStartObject();
+      generator.writeStringField("key", key);
+      generator.writeObjectFieldStart("value");
+      generator.writeStringField("intValue", Long.toString(value));
+      generator.writeEndObject();
+      generator.writeEndObject();
+   }
+
+   /**
+    * Wall clock start in nanoseconds since the epoch: the root's start
+    * millis, plus the item's offset from the root on the nanosecond clock.
+    */
+   static long startNanos(PerfTrack.Item item, PerfTrack.Item root) {
+      return root.start*PerfTrack.NANOS_PER_MILLI+(item.startNanos-root.startNanos);
+   }
+
+   static String hex(long v) {
+      String s=Long.toHexString(v);
+      return "0000000000000000".substring(s.length())+s;
+   }
+}
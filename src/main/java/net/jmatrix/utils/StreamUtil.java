@@ -170,7 +170,7 @@ public final class StreamUtil
          PerfTrack.start("readFully");
          
          ByteArrayOutputStream baos=new ByteArrayOutputStream();
-         pump(is, baos);
+         PerfTrack.add(PerfTrackCounters.BYTES_READ, pump(is, baos));
 //         int b=is.read();
 //         while (b != EOS) {
 //            baos.write(b);
@@ -0,0 +1,121 @@
+package net.jmatrix.utils;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.FlightRecorderListener;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Recording;
+import jdk.jfr.RecordingState;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * A Flight Recorder event for one PerfTrack item, from start() to stop().
+ * spanId and parentSpanId link an item to its parent, 0 meaning a root (or
+ * a parent started before events were enabled).  Written by PerfTrackJfr,
+ * which is the only class that should touch this one.
+ *
+ * An event is begun when its item is started and committed when it is
+ * stopped, and pooled items keep their event for reuse, so with
+ * PerfTrack's recycling on a steady state request allocates no events.
+ * Fields are primitives or the item's own Strings, so a commit only
+ * assigns them.
+ *
+ * This class is in src/main/jfr, which is compiled only when building on
+ * JDK 11+ (the jfr profile), since jdk.jfr is not in the Java 8 API.  It
+ * is still compiled for Java 8 and runs on any JVM with Flight Recorder.
+ * PerfTrackJfr finds it by name, so without it JFR events are unavailable.
+ */
+@Name(PerfTrackEvent.NAME)
+@Label("PerfTrack Item")
+@Category("PerfTrack")
+@Description("A PerfTrack start/stop pair")
+@StackTrace(false)
+public final class PerfTrackEvent extends Event {
+   static final String NAME="net.jmatrix.PerfTrack";
+
+   static final EventType type=EventType.getEventType(PerfTrackEvent.class);
+
+   static boolean registered=false;
+
+   @Label("Name")
+   String name;
+
+   @Label("Id")
+   String itemId;
+
+   @Label("Depth")
+   @Description("0 for a root item")
+   int depth;
+
+   @Label("Threshold")
+   @Timespan(Timespan.MILLISECONDS)
+   long threshold;
+
+   @Label("Throwable Class")
+   String throwableClass;
+
+   @Label("Span Id")
+   long spanId;
+
+   @Label("Parent Span Id")
+   long parentSpanId;
+
+   /** Called by PerfTrackJfr.setEnabled(), under its lock. */
+   static void register() {
+      if (registered)
+         return;
+      FlightRecorder.register(PerfTrackEvent.class);
+      FlightRecorder.addListener(new FlightRecorderListener() {
+         public void recordingStateChanged(Recording recording) {
+            PerfTrackJfr.update();
+         }
+      });
+      registered=true;
+   }
+
+   /** True if any recording is running. */
+   static boolean isRecording() {
+      if (!FlightRecorder.isInitialized())
+         return false;
+      for (Recording r:FlightRecorder.getFlightRecorder().getRecordings()) {
+         if (r.getState() == RecordingState.RUNNING)
+            return true;
+      }
+      return false;
+   }
+
+   static void begin(PerfTrack.Item item, long spanId) {
+      if (!type.isEnabled())
+         return;
+      PerfTrackEvent event;
+      if (item.flightEvent instanceof PerfTrackEvent) {
+         event=(PerfTrackEvent)item.flightEvent;
+      } else {
+         event=new PerfTrackEvent();
+         item.flightEvent=event;
+      }
+      item.spanId=spanId;
+      event.begin();
+   }
+
+   static void end(PerfTrack.Item item) {
+      PerfTrackEvent event=(PerfTrackEvent)item.flightEvent;
+      event.end();
+      if (!event.shouldCommit())
+         return;
+
+      event.name=item.name;
+      event.itemId=item.id;
+      event.depth=item.depth;
+      event.threshold=item.threshold;
+      event.throwableClass=item.getThrowableClassName();
+      event.spanId=item.spanId;
+      event.parentSpanId=item.parent == null ? 0 : item.parent.spanId;
+      event.commit();
+   }
+}
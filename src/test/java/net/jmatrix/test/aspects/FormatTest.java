@@ -0,0 +1,56 @@
+package net.jmatrix.test.aspects;
+
+import static org.junit.Assert.assertEquals;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+
+import net.jmatrix.aspects.AbstractLoggingAspect;
+
+import org.junit.Test;
+
+
+public class FormatTest
+{
+   static final Object[] args = new Object[] {
+      "String1", 42, Arrays.asList("one", "two"), null, 3.14159, new BigDecimal("12.50"), -7L
+   };
+
+   static final String[] formats = new String[] {
+      "plain text",
+      "s=%s, i=%d, list=%s, null=%s",
+      "%1$s %1$s %<s %2$d %<d",
+      "list=%j list=%J list=%D list=%d",
+      "%-10s|%10s|%.3s|%-8.2s|%5d|%05d",
+      "%s%n%s %% %5%",
+      "f=%5$.2f b=%4$b h=%1$h x=%2$x o=%2$o c=%2$c",
+      "big=%6$d long=%7$d",
+      "%,d %+d",
+      "%3$.4d %3$-12.5d",
+   };
+
+   @Test
+   public void formatMatchesFormatterTest()
+   {
+      for (String format : formats)
+      {
+         assertEquals(format, AbstractLoggingAspect.formatWithFormatter(format, args),
+                      AbstractLoggingAspect.format(format, args));
+         // second call uses the cached plan
+         assertEquals(format, AbstractLoggingAspect.formatWithFormatter(format, args),
+                      AbstractLoggingAspect.format(format, args));
+      }
+   }
+
+   @Test
+   public void fallbackTest()
+   {
+      String[] legacy = new String[] {"%tY", "%S", "%1$q", "%-s"};
+      Object[] arg = new Object[] {"x"};
+      for (String format : legacy)
+      {
+         assertEquals(format, AbstractLoggingAspect.formatWithFormatter(format, arg),
+                      AbstractLoggingAspect.format(format, arg));
+      }
+   }
+}
@@ -0,0 +1,54 @@
+package net.jmatrix.test.perf;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import net.jmatrix.aspects.AbstractLoggingAspect;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * <code>FormatBenchmark</code> compares formatting a typical annotation
+ * format string with a cached FormatPlan against re-writing it and calling
+ * String.format on every call.
+ *
+ * Run the same way as {@link PerfTrackBenchmark}:
+ * <pre>
+ *   java -cp target/test-classes:target/classes:$(cat cp.txt) \
+ *      org.openjdk.jmh.Main FormatBenchmark -prof gc
+ * </pre>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FormatBenchmark
+{
+   @Param({"id=%s, count=%d", "id=%s, count=%d, ids=%d, name=%-10.5s"})
+   public String format;
+
+   Object[] args = new Object[] {"abc-123", 42, Arrays.asList("one", "two"), "a long name"};
+
+   @Benchmark
+   public String plan()
+   {
+      return AbstractLoggingAspect.format(format, args);
+   }
+
+   @Benchmark
+   public String formatter()
+   {
+      return AbstractLoggingAspect.formatWithFormatter(format, args);
+   }
+}
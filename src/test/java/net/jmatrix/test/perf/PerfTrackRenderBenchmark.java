@@ -0,0 +1,85 @@
+package net.jmatrix.test.perf;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import net.jmatrix.utils.PerfTrack;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * <code>PerfTrackRenderBenchmark</code> measures rendering a completed
+ * PerfTrack tree, as a String and written to a reused StringBuilder.  The
+ * tree is a chain of depth items, each with 10 children over threshold and
+ * 10 grouped calls under it.
+ * <pre>
+ *   java -cp target/test-classes:target/classes:$(cat cp.txt) \
+ *      org.openjdk.jmh.Main PerfTrackRenderBenchmark -prof gc
+ * </pre>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PerfTrackRenderBenchmark
+{
+   @Param({"5", "50"})
+   public int depth;
+
+   PerfTrack.Item root;
+   StringBuilder out = new StringBuilder();
+
+   @Setup
+   public void setup()
+   {
+      PerfTrack.setMaxNodes(Integer.MAX_VALUE);
+      PerfTrack.setMaxDepth(Integer.MAX_VALUE);
+      PerfTrack.start("Service.handle", "Service.handle", 0);
+      level(depth);
+      PerfTrack.stop("Service.handle");
+      root = PerfTrack.detach();
+   }
+
+   void level(int remaining)
+   {
+      for (int i = 0; i < 10; i++)
+      {
+         PerfTrack.start("Dao.lookup"+i, "Dao.lookup"+i, 0);
+         PerfTrack.stop("Dao.lookup"+i);
+         PerfTrack.start("Cache.get", "Cache.get", 1000);
+         PerfTrack.stop("Cache.get");
+      }
+      if (remaining > 0)
+      {
+         PerfTrack.start("Handler.level", "Handler.level", 0);
+         level(remaining-1);
+         PerfTrack.stop("Handler.level");
+      }
+   }
+
+   @Benchmark
+   public String render()
+   {
+      return PerfTrack.toString(root, 0);
+   }
+
+   @Benchmark
+   public int write() throws IOException
+   {
+      out.setLength(0);
+      PerfTrack.write(root, 0, out);
+      return out.length();
+   }
+}
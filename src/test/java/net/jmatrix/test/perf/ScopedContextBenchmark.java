@@ -0,0 +1,178 @@
+package net.jmatrix.test.perf;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import net.jmatrix.utils.PerfTrack;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * <code>ScopedContextBenchmark</code> runs a million short tasks that each
+ * build a small PerfTrack tree, comparing:
+ * <ul>
+ * <li>threadLocal - start/stop followed by clear()</li>
+ * <li>missedClear - start/stop with no clear(), so each thread keeps its
+ *     tree (and pooled threads grow it)</li>
+ * <li>scoped - PerfTrack.call(), which needs no clear()</li>
+ * </ul>
+ *
+ * With threads=pool the tasks run on one fixed pool of platform threads
+ * for the whole trial, so trees a missed clear() leaves on a thread are
+ * still there for its next task.  With threads=virtual each batch gets a
+ * new executor running each task on its own virtual thread (Java 21+,
+ * otherwise a cached thread pool), created and shut down outside the
+ * measurement.  All modes use the same threshold, high enough that no
+ * tree is ever logged.  Run with the gc profiler for allocation, and -Xmx to
+ * compare how much heap each mode needs:
+ * <pre>
+ *   java -Xmx256m -cp target/test-classes:target/classes:$(cat cp.txt) \
+ *      org.openjdk.jmh.Main ScopedContextBenchmark -prof gc
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ScopedContextBenchmark
+{
+   /** Milliseconds, never reached, so PerfTrack.run() doesn't log its trees. */
+   static final long THRESHOLD = Integer.MAX_VALUE;
+
+   @Param({"threadLocal", "missedClear", "scoped"})
+   public String mode;
+
+   @Param({"pool", "virtual"})
+   public String threads;
+
+   @Param({"1000000"})
+   public int tasks;
+
+   /** The fixed pool, reused by every batch of the trial. */
+   ExecutorService pool;
+   /** The executor for the current batch. */
+   ExecutorService executor;
+   CountDownLatch done;
+
+   @Setup
+   public void setup()
+   {
+      if (threads.equals("pool"))
+      {
+         pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+      }
+   }
+
+   @TearDown
+   public void tearDown()
+   {
+      if (pool != null)
+      {
+         pool.shutdownNow();
+      }
+   }
+
+   @Setup(Level.Invocation)
+   public void startBatch()
+   {
+      executor = pool;
+      if (executor == null)
+      {
+         executor = newVirtualThreadExecutor();
+      }
+      if (executor == null)
+      {
+         executor = Executors.newCachedThreadPool();
+      }
+      done = new CountDownLatch(tasks);
+   }
+
+   @TearDown(Level.Invocation)
+   public void endBatch() throws Exception
+   {
+      if (executor != pool)
+      {
+         executor.shutdown();
+         executor.awaitTermination(10, TimeUnit.MINUTES);
+      }
+   }
+
+   @Benchmark
+   public void run() throws Exception
+   {
+      final CountDownLatch done = this.done;
+      Runnable task;
+      if (mode.equals("scoped"))
+      {
+         task = new Runnable() {
+            public void run() {
+               try {
+                  PerfTrack.run("task", THRESHOLD, new Runnable() {
+                     public void run() {
+                        work();
+                     }
+                  });
+               } finally {
+                  done.countDown();
+               }
+            }
+         };
+      }
+      else
+      {
+         final boolean clear = mode.equals("threadLocal");
+         task = new Runnable() {
+            public void run() {
+               try {
+                  PerfTrack.start("task", "task", THRESHOLD);
+                  work();
+                  PerfTrack.stop("task");
+                  if (clear) PerfTrack.clear();
+               } finally {
+                  done.countDown();
+               }
+            }
+         };
+      }
+      for (int i = 0; i < tasks; i++)
+      {
+         executor.execute(task);
+      }
+      done.await();
+   }
+
+   static void work()
+   {
+      PerfTrack.start("child", "child", THRESHOLD);
+      PerfTrack.stop("child");
+   }
+
+   /** Executors.newVirtualThreadPerTaskExecutor(), or null before Java 21. */
+   static ExecutorService newVirtualThreadExecutor()
+   {
+      try
+      {
+         return (ExecutorService)Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+      }
+      catch (Exception ex)
+      {
+         return null;
+      }
+   }
+}
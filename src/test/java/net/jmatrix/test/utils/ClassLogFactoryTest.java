@@ -0,0 +1,44 @@
+package net.jmatrix.test.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import net.jmatrix.utils.ClassLogFactory;
+
+import org.junit.Test;
+import org.slf4j.Logger;
+
+
+public class ClassLogFactoryTest
+{
+   static final Logger log = ClassLogFactory.getLog();
+   
+   @Test
+   public void callingClassTest()
+   {
+      assertEquals(ClassLogFactoryTest.class.getName(), log.getName());
+      assertEquals(ClassLogFactoryTest.class.getName(), ClassLogFactory.getLog().getName());
+      assertEquals(ClassLogFactoryTest.class.getName(), new Helper().getCallersLog().getName());
+      assertEquals(ClassLogFactoryTest.class.getName(), new Helper().getLogAfterHelper().getName());
+   }
+   
+   @Test
+   public void cacheTest()
+   {
+      assertSame(log, ClassLogFactory.getLog());
+      assertSame(log, ClassLogFactory.getLog(ClassLogFactoryTest.class));
+   }
+   
+   static class Helper
+   {
+      Logger getCallersLog()
+      {
+         return ClassLogFactory.getLog(1);
+      }
+      
+      Logger getLogAfterHelper()
+      {
+         return ClassLogFactory.getLog(Helper.class.getName());
+      }
+   }
+}
@@ -0,0 +1,132 @@
+package net.jmatrix.test.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+import net.jmatrix.utils.PerfTrack;
+import net.jmatrix.utils.PerfTrackCounters;
+import net.jmatrix.utils.PerfTrackDecoder;
+import net.jmatrix.utils.PerfTrackEncoder;
+import net.jmatrix.utils.PerfTrackStats;
+import net.jmatrix.utils.StreamUtil;
+
+import org.junit.After;
+import org.junit.Test;
+
+
+public class PerfTrackCountersTest
+{
+   static final PerfTrackCounters.Counter ROWS = PerfTrackCounters.counter("rows");
+   static final PerfTrackCounters.Tag SHARD = PerfTrackCounters.tag("shard");
+
+   @After
+   public void cleanup()
+   {
+      PerfTrack.clear();
+      PerfTrack.setMaxNodes(10000);
+      PerfTrackStats.reset();
+   }
+
+   @Test
+   public void countersTest() throws Exception
+   {
+      PerfTrackStats.reset();
+      assertEquals(ROWS, PerfTrackCounters.counter("rows"));
+
+      PerfTrack.start("counted request", "counted request", 0);
+      for (int i = 0; i < 2; i++)
+      {
+         PerfTrack.start("counted query", "counted query", 0);
+         PerfTrack.add(ROWS, 10);
+         PerfTrack.tag(SHARD, "eu"+i);
+         PerfTrack.stop("counted query");
+      }
+      byte data[] = StreamUtil.readFully(new ByteArrayInputStream(new byte[1000]));
+      assertEquals(1000, data.length);
+      PerfTrack.stop("counted request");
+      PerfTrack.Item root = PerfTrack.detach();
+
+      // counters roll up to parents, tags stay where they were set
+      PerfTrack.Item query = root.getChildren().get(1);
+      assertEquals(10, query.getCounter(ROWS));
+      assertEquals("eu1", query.getTag(SHARD));
+      assertEquals(20, root.getCounter(ROWS));
+      assertNull(root.getTag(SHARD));
+      assertEquals(1000, root.getChildren().get(2).getCounter(PerfTrackCounters.BYTES_READ));
+      assertEquals(1000, root.getCounter(PerfTrackCounters.BYTES_READ));
+
+      assertEquals(20, PerfTrackStats.getStat("counted query").getCounter(ROWS));
+      assertEquals(20, PerfTrackStats.getStat("counted request").getCounter(ROWS));
+      assertEquals(1000, PerfTrackStats.getStat("readFully").getCounter(PerfTrackCounters.BYTES_READ));
+
+      String s = PerfTrack.toString(root, 0);
+      assertTrue(s, s.contains("counted query {rows=10, shard=eu1} "));
+      assertTrue(s, s.startsWith("counted request {bytesRead=1000, rows=20} "));
+
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      PerfTrackEncoder encoder = new PerfTrackEncoder(bytes);
+      encoder.write(root);
+      encoder.close();
+      PerfTrack.Item decoded = new PerfTrackDecoder(new ByteArrayInputStream(bytes.toByteArray())).read();
+      assertEquals(s, PerfTrack.toString(decoded, 0));
+   }
+
+   @Test
+   public void foreignNamesTest() throws Exception
+   {
+      PerfTrack.start("foreign query", "foreign query", 0);
+      PerfTrack.add(ROWS, 10);
+      PerfTrack.tag(SHARD, "eu");
+      PerfTrack.stop("foreign query");
+      PerfTrack.Item root = PerfTrack.detach();
+
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      PerfTrackEncoder encoder = new PerfTrackEncoder(bytes);
+      encoder.write(root);
+      encoder.close();
+      // as written by a process with other counter and tag names
+      String stream = new String(bytes.toByteArray(), "ISO-8859-1")
+         .replace("rows", "wors").replace("shard", "drahs");
+      PerfTrack.Item decoded = new PerfTrackDecoder(
+         new ByteArrayInputStream(stream.getBytes("ISO-8859-1"))).read();
+
+      // unknown names are dropped, not given slots
+      assertNull(PerfTrackCounters.getCounter("wors"));
+      assertNull(PerfTrackCounters.getTag("drahs"));
+      assertEquals(0, decoded.getCounter(ROWS));
+      assertNull(decoded.getTag(SHARD));
+      assertEquals("foreign query", decoded.getName());
+   }
+
+   @Test
+   public void mergedTest() throws Exception
+   {
+      PerfTrackStats.reset();
+      PerfTrack.setMaxNodes(5);
+      PerfTrack.start("merged request", "merged request", 0);
+      for (int i = 0; i < 100; i++)
+      {
+         PerfTrack.start("merged query", "merged query", 0);
+         PerfTrack.add("rows", 1);
+         PerfTrack.stop("merged query");
+      }
+      PerfTrack.stop("merged request");
+      PerfTrack.Item root = PerfTrack.detach();
+
+      // a merged item's calls are each counted once
+      assertEquals(100, root.getCounter(ROWS));
+      PerfTrack.Item merged = root.getChildren().get(root.getChildren().size()-1);
+      assertTrue(merged.isMerged());
+      assertEquals(merged.getCount(), merged.getCounter(ROWS));
+      assertEquals(100, PerfTrackStats.getStat("merged query").getCounter(ROWS));
+      assertEquals(100, PerfTrackStats.getStat("merged request").getCounter(ROWS));
+
+      // outside a tree adds are ignored
+      PerfTrack.add(ROWS, 1);
+      assertEquals("PerfTrack: no data?", PerfTrack.toString(0));
+   }
+}
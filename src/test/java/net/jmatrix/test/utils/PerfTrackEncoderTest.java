@@ -0,0 +1,149 @@
+package net.jmatrix.test.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import net.jmatrix.utils.PerfTrack;
+import net.jmatrix.utils.PerfTrackDecoder;
+import net.jmatrix.utils.PerfTrackEncoder;
+
+import org.junit.After;
+import org.junit.Test;
+
+
+public class PerfTrackEncoderTest
+{
+   @After
+   public void cleanup()
+   {
+      PerfTrack.clear();
+   }
+   
+   @Test
+   public void roundTripTest() throws Exception
+   {
+      List<PerfTrack.Item> trees = new ArrayList<PerfTrack.Item>();
+      List<String> text = new ArrayList<String>();
+      for (int t = 0; t < 3; t++)
+      {
+         PerfTrack.start("request", "request", 0);
+         for (int i = 0; i < 5; i++)
+         {
+            PerfTrack.start("query", "select * from t"+(i%2), i == 0 ? 0 : 100);
+            PerfTrack.stop("query", "query", i == 3 ? new IllegalStateException() : null);
+         }
+         PerfTrack.start("render", "render", 0, "render(page=été)");
+         Thread.sleep(1);
+         PerfTrack.stop("render");
+         PerfTrack.stop("request");
+         PerfTrack.Item root = PerfTrack.detach();
+         trees.add(root);
+         text.add(PerfTrack.toString(root, 0));
+      }
+      
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      PerfTrackEncoder encoder = new PerfTrackEncoder(bytes);
+      for (PerfTrack.Item root : trees)
+      {
+         encoder.write(root);
+      }
+      encoder.reset();
+      encoder.write(trees.get(0));
+      encoder.close();
+      
+      PerfTrackDecoder decoder = new PerfTrackDecoder(new ByteArrayInputStream(bytes.toByteArray()));
+      for (int t = 0; t < 4; t++)
+      {
+         PerfTrack.Item root = decoder.read();
+         PerfTrack.Item original = trees.get(t%3);
+         assertEquals(text.get(t%3), PerfTrack.toString(root, 0));
+         assertEquals(original.getStartMillis(), root.getStartMillis());
+         assertEquals(original.getElapsedNanos(), root.getElapsedNanos());
+         assertEquals(original.getChildren().get(3).getId(), root.getChildren().get(3).getId());
+         assertEquals(IllegalStateException.class.getName(), 
+                      root.getChildren().get(3).getThrowableClassName());
+      }
+      assertNull(decoder.read());
+      
+      int textSize = 0;
+      for (String s : text)
+      {
+         textSize += s.length();
+      }
+      textSize += text.get(0).length();
+      assertTrue(bytes.size()+" bytes vs "+textSize, bytes.size() < textSize);
+   }
+   
+   @Test
+   public void changingTreeTest() throws Exception
+   {
+      // a worker keeps adding to the tree while it is encoded
+      PerfTrack.Span request = PerfTrack.startAsync("request");
+      final PerfTrack.Context context = request.context();
+      final AtomicBoolean done = new AtomicBoolean();
+      Thread worker = new Thread() {
+         public void run() {
+            PerfTrack.Scope scope = context.attach();
+            try {
+               for (int i = 0; !done.get(); i++) {
+                  String name = "task"+i;
+                  PerfTrack.start(name, name, 0);
+                  PerfTrack.add("rows", 1);
+                  PerfTrack.tag("shard", "s"+i);
+                  PerfTrack.stop(name);
+               }
+            } finally {
+               scope.close();
+            }
+         }
+      };
+      worker.start();
+      try
+      {
+         PerfTrack.Item root = request.getItem();
+         for (int t = 0; t < 200; t++)
+         {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            PerfTrackEncoder encoder = new PerfTrackEncoder(bytes);
+            encoder.write(root);
+            encoder.close();
+            PerfTrack.Item decoded = new PerfTrackDecoder(new ByteArrayInputStream(bytes.toByteArray())).read();
+            assertEquals("request", decoded.getName());
+         }
+      }
+      finally
+      {
+         done.set(true);
+         worker.join();
+         request.stop();
+      }
+   }
+   
+   @Test
+   public void corruptCountTest() throws Exception
+   {
+      // header, then a TREE (type 2) claiming 2^28 nodes
+      byte bytes[] = {'P', 'T', 'B', 2, 2, 0, (byte)0x80, (byte)0x80, (byte)0x80, (byte)0x80, 1, 0};
+      for (long length : new long[] {bytes.length, Long.MAX_VALUE})
+      {
+         try
+         {
+            new PerfTrackDecoder(new ByteArrayInputStream(bytes), length).read();
+            fail("read a corrupt tree");
+         }
+         catch (IOException ex)
+         {
+            // expected, without first allocating for the claimed nodes
+         }
+      }
+   }
+}
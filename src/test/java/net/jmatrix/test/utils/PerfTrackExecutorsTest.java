@@ -0,0 +1,205 @@
+package net.jmatrix.test.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import net.jmatrix.utils.PerfTrack;
+import net.jmatrix.utils.PerfTrackExecutors;
+
+import org.junit.After;
+import org.junit.Test;
+
+
+public class PerfTrackExecutorsTest
+{
+   ExecutorService pool = PerfTrackExecutors.wrap(Executors.newFixedThreadPool(4));
+   
+   @After
+   public void cleanup()
+   {
+      pool.shutdownNow();
+      PerfTrack.clear();
+      PerfTrack.setRecycling(false);
+   }
+   
+   @Test
+   public void fanOutTest() throws Exception
+   {
+      PerfTrack.start("request", "request", 0);
+      List<Future<String>> futures = new ArrayList<Future<String>>();
+      for (int i = 0; i < 20; i++)
+      {
+         futures.add(pool.submit(new Callable<String>() {
+            public String call() throws Exception {
+               PerfTrack.start("task", "task", 0);
+               PerfTrack.start("subtask", "subtask", 0);
+               PerfTrack.stop("subtask");
+               PerfTrack.stop("task");
+               // attached work never completes the submitter's tree
+               assertFalse(PerfTrack.isCurrentRootAndComplete());
+               return Thread.currentThread().getName();
+            }
+         }));
+      }
+      for (Future<String> f : futures)
+      {
+         f.get();
+      }
+      String s = CompletableFuture.supplyAsync(PerfTrackExecutors.wrapSupplier(new java.util.function.Supplier<String>() {
+         public String get() {
+            PerfTrack.start("async", "async", 0);
+            PerfTrack.stop("async");
+            return "done";
+         }
+      }), pool).get();
+      assertEquals("done", s);
+      PerfTrack.stop("request");
+      
+      assertTrue(PerfTrack.isCurrentRootAndComplete());
+      PerfTrack.Item root = PerfTrack.detach();
+      assertEquals(21, root.getChildren().size());
+      int tasks = 0;
+      for (PerfTrack.Item child : root.getChildren())
+      {
+         if (child.getName().equals("task"))
+         {
+            tasks++;
+            assertEquals(1, child.getChildren().size());
+            assertEquals("subtask", child.getChildren().get(0).getName());
+         }
+      }
+      assertEquals(20, tasks);
+   }
+   
+   @Test
+   public void workerStateRestoredTest() throws Exception
+   {
+      PerfTrack.setRecycling(true);
+      PerfTrack.start("request", "request", 0);
+      pool.submit(new Runnable() {
+         public void run() {
+            PerfTrack.start("task", "task", 0);
+            PerfTrack.stop("task");
+            // clear() on an attached thread leaves the submitter's tree alone
+            PerfTrack.clear();
+         }
+      }).get();
+      Future<String> f = pool.submit(new Callable<String>() {
+         public String call() {
+            return PerfTrack.toString(0);
+         }
+      });
+      PerfTrack.stop("request");
+      // the task saw the request tree while attached
+      assertTrue(f.get(), f.get().startsWith("request"));
+      
+      PerfTrack.Item root = PerfTrack.detach();
+      assertEquals(1, root.getChildren().size());
+      
+      // after a task, pool threads are back to tracking nothing
+      Future<String> after = pool.submit(new Callable<String>() {
+         public String call() {
+            return PerfTrack.toString(0);
+         }
+      });
+      assertEquals("PerfTrack: no data?", after.get());
+      PerfTrack.clear();
+      assertNull(PerfTrack.detach());
+   }
+   
+   @Test
+   public void forkJoinTest() throws Exception
+   {
+      ForkJoinPool forkJoinPool = new ForkJoinPool(4);
+      try
+      {
+         PerfTrack.start("request", "request", 0);
+         // tasks submitted directly, not through a wrapper
+         assertEquals(Integer.valueOf(16), forkJoinPool.submit(new Leaves(16)).get());
+         PerfTrack.stop("request");
+      }
+      finally
+      {
+         forkJoinPool.shutdownNow();
+      }
+      PerfTrack.Item root = PerfTrack.detach();
+      assertEquals(1, root.getChildren().size());
+      assertEquals(16, countLeaves(root));
+   }
+   
+   /** Splits in two until there is one leaf, each piece tracked. */
+   static class Leaves extends PerfTrackExecutors.TrackedRecursiveTask<Integer>
+   {
+      private static final long serialVersionUID = 1L;
+      
+      final int n;
+      
+      Leaves(int n)
+      {
+         this.n = n;
+      }
+      
+      protected Integer compute()
+      {
+         PerfTrack.start(n == 1 ? "leaf" : "split", "split", 0);
+         try
+         {
+            if (n == 1)
+               return 1;
+            Leaves left = new Leaves(n/2);
+            left.fork();
+            return new Leaves(n-n/2).compute()+left.join();
+         }
+         finally
+         {
+            PerfTrack.stop(n == 1 ? "leaf" : "split");
+         }
+      }
+   }
+   
+   static int countLeaves(PerfTrack.Item item)
+   {
+      int leaves = item.getName().equals("leaf") ? 1 : 0;
+      for (PerfTrack.Item child : item.getChildren())
+      {
+         leaves += countLeaves(child);
+      }
+      return leaves;
+   }
+   
+   @Test
+   public void sharedTreeNotRecycledTest() throws Exception
+   {
+      PerfTrack.setRecycling(true);
+      PerfTrack.start("request", "request", 0);
+      PerfTrack.start("handler", "handler", 0);
+      PerfTrack.Span late = PerfTrack.startAsync("late");
+      PerfTrack.stop("handler");
+      PerfTrack.stop("request");
+      PerfTrack.clear();
+      
+      // the span still reaches the request through its parent, which must
+      // not be reused by the next tree on this thread
+      PerfTrack.start("next", "next", 0);
+      PerfTrack.start("next child", "next child", 0);
+      PerfTrack.stop("next child");
+      PerfTrack.stop("next");
+      PerfTrack.Item handler = late.getItem().getParent();
+      assertEquals("handler", handler.getName());
+      assertEquals("request", handler.getParent().getName());
+      assertSame(handler.getParent(), handler.findRoot());
+      late.stop();
+   }
+}
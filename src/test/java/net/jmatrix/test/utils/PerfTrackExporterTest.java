@@ -0,0 +1,164 @@
+package net.jmatrix.test.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+
+import net.jmatrix.utils.PerfTrack;
+import net.jmatrix.utils.PerfTrackExporter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+public class PerfTrackExporterTest
+{
+   List<String> rendered = new CopyOnWriteArrayList<String>();
+   List<Thread> threads = new CopyOnWriteArrayList<Thread>();
+   
+   PerfTrackExporter.Sink sink = new PerfTrackExporter.Sink() {
+      public void export(PerfTrack.Item root) {
+         threads.add(Thread.currentThread());
+         rendered.add(PerfTrack.toString(root, 0));
+      }
+   };
+   
+   @Before
+   public void setup()
+   {
+      PerfTrackExporter.clearSinks();
+      PerfTrackExporter.addSink(sink);
+      PerfTrackExporter.resetCounts();
+   }
+   
+   @After
+   public void cleanup()
+   {
+      PerfTrackExporter.flush(1000);
+      PerfTrackExporter.clearSinks();
+      PerfTrackExporter.addSink(new PerfTrackExporter.LogSink());
+      PerfTrackExporter.setCapacity(1024);
+      PerfTrackExporter.setOverflowPolicy(PerfTrackExporter.OverflowPolicy.DROP);
+      PerfTrackExporter.setEnabled(false);
+      PerfTrack.clear();
+   }
+   
+   @Test
+   public void exportTest()
+   {
+      PerfTrack.start("root", "root", 0);
+      PerfTrack.start("child", "child", 0);
+      PerfTrack.stop("child");
+      PerfTrack.stop("root");
+      
+      PerfTrack.Item root = PerfTrack.detach();
+      assertEquals("root", root.getName());
+      assertEquals("PerfTrack: no data?", PerfTrack.toString(0));
+      
+      assertTrue(PerfTrackExporter.export(root));
+      assertTrue(PerfTrackExporter.flush(5000));
+      
+      assertEquals(1, rendered.size());
+      assertTrue(rendered.get(0), rendered.get(0).matches("(?s)root [0-9]+ms\n  child [0-9]+ms\n.*"));
+      assertNotSame(Thread.currentThread(), threads.get(0));
+      assertEquals(1, PerfTrackExporter.getExportedCount());
+   }
+   
+   @Test
+   public void labelTest()
+   {
+      // a deferred label is formatted by the request thread, before export
+      final List<Thread> formatted = new CopyOnWriteArrayList<Thread>();
+      Object label = new Object() {
+         public String toString() {
+            formatted.add(Thread.currentThread());
+            return "labelled(1)";
+         }
+      };
+      PerfTrackExporter.setEnabled(true);
+      PerfTrack.start("labelled", "labelled", 0, label);
+      PerfTrack.stop("labelled");
+      assertTrue(PerfTrack.completeRoot(LoggerFactory.getLogger(getClass())));
+      assertTrue(PerfTrackExporter.flush(5000));
+      
+      assertEquals(1, formatted.size());
+      assertSame(Thread.currentThread(), formatted.get(0));
+      assertTrue(rendered.get(0), rendered.get(0).startsWith("labelled(1) "));
+   }
+   
+   @Test
+   public void logSinkTest()
+   {
+      // the default LogSink writes to the exporting class's logger, so
+      // a tree is not queued while that logger has DEBUG off
+      Logger quiet = LoggerFactory.getLogger(getClass());
+      assertFalse(quiet.isDebugEnabled());
+      PerfTrackExporter.clearSinks();
+      PerfTrackExporter.addSink(new PerfTrackExporter.LogSink());
+      assertFalse(PerfTrackExporter.hasSink(quiet));
+      
+      PerfTrackExporter.setEnabled(true);
+      PerfTrack.start("quiet", "quiet", 0);
+      PerfTrack.stop("quiet");
+      assertTrue(PerfTrack.completeRoot(quiet));
+      assertTrue(PerfTrackExporter.flush(5000));
+      assertEquals(0, PerfTrackExporter.getExportedCount());
+      
+      PerfTrackExporter.addSink(sink);
+      assertTrue(PerfTrackExporter.hasSink(quiet));
+   }
+   
+   @Test
+   public void overflowTest() throws Exception
+   {
+      // hold the exporter thread in the sink so the queue fills
+      final CountDownLatch entered = new CountDownLatch(1);
+      final CountDownLatch release = new CountDownLatch(1);
+      PerfTrackExporter.Sink blocking = new PerfTrackExporter.Sink() {
+         public void export(PerfTrack.Item root) throws Exception {
+            if (root.getName().equals("block") && 
+                Thread.currentThread().getName().equals("PerfTrackExporter")) {
+               entered.countDown();
+               release.await();
+            }
+         }
+      };
+      PerfTrackExporter.addSink(blocking);
+      try
+      {
+         PerfTrackExporter.setCapacity(2);
+         assertTrue(PerfTrackExporter.export(tree("block")));
+         entered.await();
+         assertTrue(PerfTrackExporter.export(tree("queued")));
+         assertFalse(PerfTrackExporter.export(tree("dropped")));
+         assertEquals(1, PerfTrackExporter.getDroppedCount());
+         
+         PerfTrackExporter.setOverflowPolicy(PerfTrackExporter.OverflowPolicy.CALLER_RUNS);
+         assertTrue(PerfTrackExporter.export(tree("callerRuns")));
+         assertTrue(threads.contains(Thread.currentThread()));
+      }
+      finally
+      {
+         release.countDown();
+         PerfTrackExporter.flush(5000);
+         PerfTrackExporter.removeSink(blocking);
+      }
+      assertEquals(3, rendered.size());
+   }
+   
+   static PerfTrack.Item tree(String name)
+   {
+      PerfTrack.start(name, name, 0);
+      PerfTrack.stop(name);
+      return PerfTrack.detach();
+   }
+}
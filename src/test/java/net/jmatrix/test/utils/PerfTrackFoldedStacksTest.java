@@ -0,0 +1,64 @@
+package net.jmatrix.test.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import net.jmatrix.utils.PerfTrack;
+import net.jmatrix.utils.PerfTrackFoldedStacks;
+
+import org.junit.After;
+import org.junit.Test;
+
+
+public class PerfTrackFoldedStacksTest
+{
+   @After
+   public void cleanup()
+   {
+      PerfTrack.clear();
+   }
+
+   @Test
+   public void foldedTest() throws Exception
+   {
+      PerfTrackFoldedStacks folded = new PerfTrackFoldedStacks();
+      long requestSelf = 0;
+      long querySelf = 0;
+      for (int i = 0; i < 3; i++)
+      {
+         PerfTrack.start("request", "request", 0);
+         Thread.sleep(2);
+         PerfTrack.start("query db", "query", 0);
+         Thread.sleep(3);
+         PerfTrack.stop("query db");
+         PerfTrack.stop("request");
+         PerfTrack.Item root = PerfTrack.detach();
+         PerfTrack.Item query = root.getChildren().get(0);
+         requestSelf += root.getElapsedNanos()-query.getElapsedNanos();
+         querySelf += query.getElapsedNanos();
+         folded.add(root);
+
+         StringBuilder single = new StringBuilder();
+         PerfTrackFoldedStacks.writeTree(root, single);
+         assertEquals(2, single.toString().split("\n").length);
+      }
+      assertEquals(3, folded.getTreeCount());
+
+      Map<String, Long> lines = new HashMap<String, Long>();
+      for (String line : folded.toString().split("\n"))
+      {
+         int space = line.lastIndexOf(' ');
+         lines.put(line.substring(0, space), Long.parseLong(line.substring(space+1)));
+      }
+      assertEquals(2, lines.size());
+      assertEquals(requestSelf/1000, lines.get("request").longValue());
+      assertEquals(querySelf/1000, lines.get("request;query_db").longValue());
+      assertTrue(lines.get("request;query_db") >= 9000);
+
+      folded.reset();
+      assertEquals("", folded.toString());
+   }
+}
@@ -0,0 +1,97 @@
+package net.jmatrix.test.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.lang.reflect.Method;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.jmatrix.utils.PerfTrack;
+import net.jmatrix.utils.PerfTrackJfr;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Test;
+
+
+/**
+ * jdk.jfr is used reflectively, so this compiles against the Java 8 API.
+ * Skipped unless PerfTrackEvent was built, see the jfr profile.
+ */
+public class PerfTrackJfrTest
+{
+   static Object call(Object target, String method, Object... args) throws Exception
+   {
+      for (Method m : target.getClass().getMethods())
+      {
+         if (m.getName().equals(method) && m.getParameterTypes().length == args.length)
+            return m.invoke(target, args);
+      }
+      throw new NoSuchMethodException(method);
+   }
+
+   @After
+   public void cleanup()
+   {
+      PerfTrackJfr.setEnabled(false);
+      PerfTrack.clear();
+   }
+
+   @Test
+   public void eventTest() throws Exception
+   {
+      Assume.assumeTrue(PerfTrackJfr.isAvailable());
+      PerfTrackJfr.setEnabled(true);
+
+      // not recorded, there is no recording yet
+      PerfTrack.start("before", "before", 0);
+      PerfTrack.stop("before");
+      PerfTrack.clear();
+
+      File file = File.createTempFile("perftrack", ".jfr");
+      file.deleteOnExit();
+      Object recording = Class.forName("jdk.jfr.Recording").newInstance();
+      recording.getClass().getMethod("enable", String.class).invoke(recording, "net.jmatrix.PerfTrack");
+      call(recording, "start");
+      try
+      {
+         PerfTrack.start("request", "request", 100);
+         PerfTrack.start("query", "select 1", 0);
+         PerfTrack.stop("query", "query", new IllegalStateException());
+         PerfTrack.start("render", "render", 0);
+         PerfTrack.stop("render");
+         PerfTrack.stop("request");
+      }
+      finally
+      {
+         call(recording, "stop");
+      }
+      call(recording, "dump", file.toPath());
+      call(recording, "close");
+
+      List<?> events = (List<?>)Class.forName("jdk.jfr.consumer.RecordingFile")
+         .getMethod("readAllEvents", Path.class).invoke(null, file.toPath());
+      Map<String, Object> byName = new HashMap<String, Object>();
+      for (Object e : events)
+      {
+         byName.put((String)call(e, "getString", "name"), e);
+      }
+      assertEquals(3, events.size());
+
+      Object request = byName.get("request");
+      Object query = byName.get("query");
+      assertEquals(0, call(request, "getInt", "depth"));
+      assertEquals(0L, call(request, "getLong", "parentSpanId"));
+      assertEquals(100L, call(request, "getLong", "threshold"));
+      assertEquals(1, call(query, "getInt", "depth"));
+      assertEquals("select 1", call(query, "getString", "itemId"));
+      assertEquals(call(request, "getLong", "spanId"), call(query, "getLong", "parentSpanId"));
+      assertEquals(call(request, "getLong", "spanId"), call(byName.get("render"), "getLong", "parentSpanId"));
+      assertEquals(IllegalStateException.class.getName(), call(query, "getString", "throwableClass"));
+      assertNull(call(request, "getString", "throwableClass"));
+   }
+}
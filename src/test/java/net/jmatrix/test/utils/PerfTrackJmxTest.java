@@ -0,0 +1,90 @@
+package net.jmatrix.test.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.Attribute;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import net.jmatrix.utils.PerfTrack;
+import net.jmatrix.utils.PerfTrackJmx;
+import net.jmatrix.utils.PerfTrackSampler;
+import net.jmatrix.utils.PerfTrackStats;
+import net.jmatrix.utils.PerfTrackThresholds;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+
+public class PerfTrackJmxTest
+{
+   MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+
+   @Before
+   public void setup()
+   {
+      PerfTrackStats.reset();
+      PerfTrackJmx.register();
+   }
+
+   @After
+   public void cleanup()
+   {
+      PerfTrackJmx.unregister();
+      PerfTrack.setDefaultThreshold(20);
+      PerfTrackThresholds.clear();
+      PerfTrackSampler.setPolicy(null);
+      PerfTrack.clear();
+   }
+
+   @Test
+   public void jmxTest() throws Exception
+   {
+      ObjectName control = PerfTrackJmx.getControlName();
+      assertTrue(server.isRegistered(control));
+
+      PerfTrack.start("jmx request", "jmx request", 0);
+      assertEquals(1L, server.getAttribute(control, "InFlightCount"));
+      PerfTrack.start("jmx query", "jmx query", 0);
+      Thread.sleep(2);
+      PerfTrack.stop("jmx query");
+      PerfTrack.stop("jmx request");
+      PerfTrack.clear();
+      assertEquals(0L, server.getAttribute(control, "InFlightCount"));
+
+      // a bean per item name, registered as the name is first recorded
+      ObjectName query = PerfTrackJmx.getItemName("jmx query");
+      assertTrue(server.isRegistered(query));
+      assertEquals(1L, server.getAttribute(query, "Count"));
+      assertTrue((Double)server.getAttribute(query, "P99Millis") >= 2.0);
+
+      server.setAttribute(control, new Attribute("DefaultThreshold", 50L));
+      assertEquals(50, PerfTrack.getDefaultThreshold());
+      PerfTrack.start("jmx default");
+      PerfTrack.stop("jmx default");
+      assertEquals(50, PerfTrack.detach().getThreshold());
+
+      server.invoke(control, "setThreshold", new Object[] {"jmx query", 5L},
+                    new String[] {String.class.getName(), long.class.getName()});
+      assertEquals(Long.valueOf(5), PerfTrackThresholds.get("jmx query"));
+
+      server.invoke(control, "sampleRate", new Object[] {0.0}, new String[] {double.class.getName()});
+      PerfTrack.start("jmx unsampled");
+      assertTrue(PerfTrack.isUnsampled());
+      PerfTrack.stop("jmx unsampled");
+      server.invoke(control, "sampleAll", new Object[0], new String[0]);
+      assertEquals("all", server.getAttribute(control, "SamplingPolicy"));
+
+      server.invoke(control, "reset", new Object[0], new String[0]);
+      assertEquals(0L, server.getAttribute(query, "Count"));
+
+      PerfTrackJmx.unregister();
+      assertFalse(server.isRegistered(control));
+      assertFalse(server.isRegistered(query));
+   }
+}
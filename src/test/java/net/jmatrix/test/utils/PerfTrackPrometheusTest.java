@@ -0,0 +1,104 @@
+package net.jmatrix.test.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+
+import net.jmatrix.utils.PerfTrack;
+import net.jmatrix.utils.PerfTrackPrometheus;
+import net.jmatrix.utils.PerfTrackStats;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+
+public class PerfTrackPrometheusTest
+{
+   @Before
+   public void setup()
+   {
+      PerfTrackStats.reset();
+   }
+
+   @After
+   public void cleanup()
+   {
+      PerfTrackPrometheus.stop();
+      PerfTrackStats.reset();
+      PerfTrack.clear();
+   }
+
+   @Test
+   public void scrapeTest() throws Exception
+   {
+      PerfTrackStats.record("fast", 1000, false);
+      PerfTrackStats.record("fast", 10000, true);
+      PerfTrackStats.record("slow \"query\"", 2000000000L, false);
+
+      Map<String, String> samples = parse(PerfTrackPrometheus.scrape());
+      assertEquals("1", samples.get("perftrack_item_duration_seconds_bucket{name=\"fast\",le=\"0.000004096\"}"));
+      assertEquals("2", samples.get("perftrack_item_duration_seconds_bucket{name=\"fast\",le=\"0.000016384\"}"));
+      assertEquals("2", samples.get("perftrack_item_duration_seconds_bucket{name=\"fast\",le=\"+Inf\"}"));
+      assertEquals("2", samples.get("perftrack_item_duration_seconds_count{name=\"fast\"}"));
+      assertEquals("0.000011", samples.get("perftrack_item_duration_seconds_sum{name=\"fast\"}"));
+      assertEquals("1", samples.get("perftrack_item_errors_total{name=\"fast\"}"));
+
+      String slow = "{name=\"slow \\\"query\\\"\"";
+      assertEquals("0", samples.get("perftrack_item_duration_seconds_bucket"+slow+",le=\"1.073741824\"}"));
+      assertEquals("1", samples.get("perftrack_item_duration_seconds_bucket"+slow+",le=\"4.294967296\"}"));
+      assertEquals("2", samples.get("perftrack_item_duration_seconds_sum"+slow+"}"));
+      assertTrue(samples.containsKey("perftrack_trees_in_flight"));
+   }
+
+   @Test
+   public void httpTest() throws Exception
+   {
+      PerfTrackPrometheus.start(new InetSocketAddress("127.0.0.1", 0));
+      PerfTrack.start("http request", "http request", 0);
+      PerfTrack.stop("http request");
+      PerfTrack.clear();
+
+      URL url = new URL("http://127.0.0.1:"+PerfTrackPrometheus.getAddress().getPort()+
+                        PerfTrackPrometheus.PATH);
+      for (int i = 0; i < 2; i++)
+      {
+         HttpURLConnection connection = (HttpURLConnection)url.openConnection();
+         assertEquals(200, connection.getResponseCode());
+         assertTrue(connection.getContentType().startsWith("text/plain; version=0.0.4"));
+         Map<String, String> samples = parse(read(connection.getInputStream()));
+         assertEquals("1", samples.get("perftrack_item_duration_seconds_count{name=\"http request\"}"));
+      }
+   }
+
+   static Map<String, String> parse(String text)
+   {
+      Map<String, String> samples = new HashMap<String, String>();
+      for (String line : text.split("\n"))
+      {
+         if (line.startsWith("#"))
+            continue;
+         int space = line.lastIndexOf(' ');
+         samples.put(line.substring(0, space), line.substring(space+1));
+      }
+      return samples;
+   }
+
+   static String read(InputStream in) throws Exception
+   {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      byte buf[] = new byte[4096];
+      int n;
+      while ((n = in.read(buf)) > 0)
+         out.write(buf, 0, n);
+      in.close();
+      return out.toString("UTF-8");
+   }
+}
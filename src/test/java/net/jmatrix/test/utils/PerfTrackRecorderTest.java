@@ -0,0 +1,152 @@
+package net.jmatrix.test.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+import net.jmatrix.utils.PerfTrack;
+import net.jmatrix.utils.PerfTrackRecorder;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+
+
+public class PerfTrackRecorderTest
+{
+   File file;
+   PerfTrackRecorder recorder;
+
+   @Before
+   public void setup() throws Exception
+   {
+      file = File.createTempFile("perftrack", ".ring");
+      file.deleteOnExit();
+      recorder = PerfTrackRecorder.open(file, 8, 512);
+      PerfTrackRecorder.install(recorder);
+   }
+
+   @After
+   public void cleanup()
+   {
+      recorder.close();
+      PerfTrack.clear();
+   }
+
+   @Test
+   public void ringTest() throws Exception
+   {
+      for (int i = 0; i < 20; i++)
+      {
+         final int n = i;
+         // fast trees are recorded too, not only those over threshold
+         PerfTrack.run("request"+i, 1000, new Runnable() {
+            public void run() {
+               PerfTrack.start("query", "select "+n, 0);
+               PerfTrack.stop("query");
+            }
+         });
+      }
+      assertEquals(20, recorder.getRecordedCount());
+
+      // the newest 8, oldest first, read back from the file
+      List<PerfTrack.Item> trees = PerfTrackRecorder.read(file);
+      assertEquals(8, trees.size());
+      for (int i = 0; i < 8; i++)
+      {
+         assertEquals("request"+(12+i), trees.get(i).getName());
+         assertEquals("select "+(12+i), trees.get(i).getChildren().get(0).getId());
+      }
+      assertEquals(PerfTrack.toString(trees.get(7), 0),
+                   PerfTrack.toString(recorder.snapshot().get(7), 0));
+
+      // a corrupt slot is skipped, and a reopened file carries on
+      recorder.close();
+      RandomAccessFile raf = new RandomAccessFile(file, "rw");
+      raf.seek(64+16+4);
+      raf.write(0xFF);
+      raf.close();
+      assertEquals(7, PerfTrackRecorder.read(file).size());
+
+      recorder = PerfTrackRecorder.open(file, 8, 512);
+      PerfTrackRecorder.install(recorder);
+      PerfTrack.run("after", 0, new Runnable() {
+         public void run() {
+         }
+      });
+      trees = PerfTrackRecorder.read(file);
+      assertEquals("after", trees.get(trees.size()-1).getName());
+
+      // too large for a slot
+      PerfTrack.start("large", "large", 0);
+      for (int i = 0; i < 100; i++)
+      {
+         PerfTrack.start("child"+i, "child"+i, 0);
+         PerfTrack.stop("child"+i);
+      }
+      PerfTrack.stop("large");
+      PerfTrack.completeRoot(LoggerFactory.getLogger(getClass()), false);
+      assertEquals(1, recorder.getDroppedCount());
+   }
+
+   @Test
+   public void labelTest() throws Exception
+   {
+      // a fast tree's deferred label is recorded without being formatted
+      final int formatted[] = new int[1];
+      Object label = new Object() {
+         public String toString() {
+            formatted[0]++;
+            return "labelled(1)";
+         }
+      };
+      PerfTrack.start("labelled", "labelled", 1000, label);
+      PerfTrack.stop("labelled");
+      assertTrue(PerfTrack.completeRoot(LoggerFactory.getLogger(getClass())));
+      assertEquals(0, formatted[0]);
+      
+      List<PerfTrack.Item> trees = recorder.snapshot();
+      assertEquals("labelled", trees.get(trees.size()-1).getDisplayName());
+   }
+
+   @Test
+   public void concurrentTest() throws Exception
+   {
+      Thread threads[] = new Thread[4];
+      for (int t = 0; t < threads.length; t++)
+      {
+         final int id = t;
+         threads[t] = new Thread() {
+            public void run() {
+               for (int i = 0; i < 1000; i++)
+               {
+                  PerfTrack.run("thread"+id, 0, new Runnable() {
+                     public void run() {
+                        PerfTrack.start("work", "work", 0);
+                        PerfTrack.stop("work");
+                     }
+                  });
+               }
+            }
+         };
+         threads[t].start();
+      }
+      for (Thread t : threads)
+      {
+         t.join();
+      }
+
+      assertEquals(4000, recorder.getRecordedCount()+recorder.getDroppedCount());
+      List<PerfTrack.Item> trees = recorder.snapshot();
+      assertTrue(trees.size() > 0 && trees.size() <= 8);
+      for (PerfTrack.Item root : trees)
+      {
+         assertTrue(root.getName().startsWith("thread"));
+         assertEquals("work", root.getChildren().get(0).getName());
+      }
+   }
+}
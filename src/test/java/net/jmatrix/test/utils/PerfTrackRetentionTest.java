@@ -0,0 +1,103 @@
+package net.jmatrix.test.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import net.jmatrix.utils.PerfTrack;
+import net.jmatrix.utils.PerfTrackRetention;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+
+public class PerfTrackRetentionTest
+{
+   @Before
+   public void setup()
+   {
+      PerfTrackRetention.reset();
+      PerfTrackRetention.setWindowMillis(200);
+      PerfTrackRetention.setMinSamples(10);
+      PerfTrackRetention.setEnabled(true);
+   }
+
+   @After
+   public void cleanup()
+   {
+      PerfTrackRetention.setEnabled(false);
+      PerfTrackRetention.setWindowMillis(60000);
+      PerfTrackRetention.setMinSamples(100);
+      PerfTrackRetention.setCapacity(1000);
+      PerfTrackRetention.reset();
+      PerfTrack.clear();
+   }
+
+   @Test
+   public void retentionTest() throws Exception
+   {
+      // no cutoff yet, only failed trees and those over threshold are kept
+      for (int i = 0; i < 50; i++)
+      {
+         request(0, false);
+      }
+      try
+      {
+         request(0, true);
+      }
+      catch (IllegalStateException ex)
+      {
+         // expected
+      }
+      assertEquals(-1, PerfTrackRetention.getCutoffNanos("request"));
+      assertEquals(1, PerfTrackRetention.getFailedCount());
+      assertEquals(50, PerfTrackRetention.getFoldedCount());
+
+      // the next window's cutoff comes from the first window
+      Thread.sleep(250);
+      request(0, false);
+      long cutoff = PerfTrackRetention.getCutoffNanos("request");
+      assertTrue(cutoff > 0);
+
+      long slow = cutoff/1000000+30;
+      request(slow, false);
+      assertEquals(1, PerfTrackRetention.getSlowCount());
+      assertEquals(2, PerfTrackRetention.getRetainedCount("request"));
+      assertEquals(51, PerfTrackRetention.getFoldedCount("request"));
+
+      List<PerfTrack.Item> retained = PerfTrackRetention.getRetained();
+      assertEquals(2, retained.size());
+      assertTrue(PerfTrack.toString(retained.get(0), 0).contains("threw [IllegalStateException]"));
+      assertTrue(retained.get(1).getElapsedMillis() >= slow);
+      // the full tree is kept, including children under their threshold
+      assertEquals("query", retained.get(1).getChildren().get(0).getName());
+
+      PerfTrackRetention.setCapacity(1);
+      request(slow, false);
+      assertEquals(1, PerfTrackRetention.getRetained().size());
+      assertEquals(2, PerfTrackRetention.getEvictedCount());
+   }
+
+   static void request(final long sleep, final boolean fail)
+   {
+      // a high threshold, so only retention decides what is kept
+      PerfTrack.run("request", 1000, new Runnable() {
+         public void run() {
+            PerfTrack.start("query", "query", 0);
+            PerfTrack.stop("query", "query", fail ? new IllegalStateException() : null);
+            try
+            {
+               Thread.sleep(sleep);
+            }
+            catch (InterruptedException ex)
+            {
+               // ignore
+            }
+            if (fail)
+               throw new IllegalStateException();
+         }
+      });
+   }
+}
@@ -0,0 +1,90 @@
+package net.jmatrix.test.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import net.jmatrix.utils.PerfTrack;
+import net.jmatrix.utils.PerfTrackSampler;
+
+import org.junit.After;
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+
+
+public class PerfTrackSamplerTest
+{
+   @After
+   public void cleanup()
+   {
+      PerfTrackSampler.setPolicy(null);
+      PerfTrackSampler.resetCounts();
+      PerfTrack.clear();
+   }
+
+   @Test
+   public void unsampledTest() throws Exception
+   {
+      PerfTrackSampler.setPolicy(new PerfTrackSampler.PerName(0.0).set("kept", 1.0));
+
+      PerfTrack.start("dropped", "dropped", 0);
+      assertTrue(PerfTrack.isUnsampled());
+      PerfTrack.start("child", "child", 0);
+      PerfTrack.start();
+      assertEquals(-1, PerfTrack.stop());
+      PerfTrack.stop("child");
+      PerfTrack.Span span = PerfTrack.startAsync("async");
+      assertTrue(span.isStopped());
+      assertTrue(PerfTrack.capture().isEmpty());
+      assertEquals("PerfTrack: not sampled", PerfTrack.toString(0));
+      PerfTrack.stop("dropped");
+
+      // the thread is left with no tree
+      assertFalse(PerfTrack.isUnsampled());
+      assertFalse(PerfTrack.completeRoot(LoggerFactory.getLogger(getClass()), true));
+      assertEquals("PerfTrack: no data?", PerfTrack.toString(0));
+
+      PerfTrack.run("kept", 0, new Runnable() {
+         public void run() {
+            PerfTrack.start("child", "child", 0);
+            PerfTrack.stop("child");
+            assertTrue(PerfTrack.toString(0).contains("child"));
+         }
+      });
+      assertEquals(1, PerfTrackSampler.getSampledCount());
+      assertEquals(1, PerfTrackSampler.getUnsampledCount());
+
+      PerfTrackSampler.setPolicy(PerfTrackSampler.fixedRate(0.5));
+      for (int i = 0; i < 1000; i++)
+      {
+         PerfTrack.run("half", 0, new Runnable() {
+            public void run() {
+            }
+         });
+      }
+      long sampled = PerfTrackSampler.getSampledCount()-1;
+      assertTrue(sampled+" of 1000", sampled > 350 && sampled < 650);
+   }
+
+   @Test
+   public void adaptiveTest() throws Exception
+   {
+      PerfTrackSampler.Policy policy = PerfTrackSampler.adaptive(10);
+      // everything is sampled until the first second's rate is known
+      long end = System.nanoTime()+TimeUnit.MILLISECONDS.toNanos(900);
+      while (System.nanoTime() < end)
+      {
+         assertTrue(policy.sample("request"));
+      }
+      Thread.sleep(200);
+      int sampled = 0;
+      for (int i = 0; i < 10000; i++)
+      {
+         if (policy.sample("request"))
+            sampled++;
+      }
+      assertTrue(sampled+" of 10000", sampled < 100);
+   }
+}
@@ -0,0 +1,90 @@
+package net.jmatrix.test.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import net.jmatrix.utils.PerfTrack;
+
+import org.junit.After;
+import org.junit.Test;
+
+
+public class PerfTrackSpanTest
+{
+   ExecutorService pool = Executors.newFixedThreadPool(4);
+   
+   @After
+   public void cleanup()
+   {
+      pool.shutdownNow();
+      PerfTrack.clear();
+   }
+   
+   @Test
+   public void spanTest() throws Exception
+   {
+      PerfTrack.start("request", "request", 0);
+      final PerfTrack.Span span = PerfTrack.startAsync("remoteCall", 0);
+      
+      // the span is not current, so the thread carries on as before
+      PerfTrack.start("local", "local", 0);
+      PerfTrack.stop("local");
+      
+      CompletableFuture<Long> done = CompletableFuture.supplyAsync(new java.util.function.Supplier<Long>() {
+         public Long get() {
+            try {
+               Thread.sleep(5);
+            } catch (InterruptedException ex) {
+               // ignore
+            }
+            // the callback records its own work under the span
+            PerfTrack.Scope scope = span.context().attach();
+            try {
+               PerfTrack.start("parseResponse", "parseResponse", 0);
+               PerfTrack.stop("parseResponse");
+            } finally {
+               scope.close();
+            }
+            return span.stop();
+         }
+      }, pool);
+      
+      assertTrue(done.get() >= 5);
+      assertTrue(span.isStopped());
+      assertEquals(-1, span.stop());
+      
+      PerfTrack.stop("request");
+      assertTrue(PerfTrack.isCurrentRootAndComplete());
+      String s = PerfTrack.toString(0);
+      assertTrue(s, s.matches("(?s)request [0-9]+ms\n  remoteCall [0-9]+ms\n    parseResponse [0-9]+ms\n.*  local [0-9]+ms\n.*"));
+   }
+   
+   @Test
+   public void concurrentSpansTest() throws Exception
+   {
+      PerfTrack.start("request", "request", 0);
+      CompletableFuture<?> futures[] = new CompletableFuture<?>[50];
+      for (int i = 0; i < futures.length; i++)
+      {
+         final PerfTrack.Span span = PerfTrack.startAsync("call");
+         futures[i] = CompletableFuture.runAsync(new Runnable() {
+            public void run() {
+               span.stop();
+            }
+         }, pool);
+      }
+      CompletableFuture.allOf(futures).get();
+      PerfTrack.stop("request");
+      
+      PerfTrack.Item root = PerfTrack.detach();
+      assertEquals(50, root.getChildren().size());
+      for (PerfTrack.Item child : root.getChildren())
+      {
+         assertTrue(child.isDone());
+      }
+   }
+}
@@ -0,0 +1,276 @@
+package net.jmatrix.test.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.StringWriter;
+import java.util.concurrent.Callable;
+
+import net.jmatrix.utils.PerfTrack;
+import net.jmatrix.utils.PerfTrackDecoder;
+import net.jmatrix.utils.PerfTrackEncoder;
+import net.jmatrix.utils.PerfTrackStats;
+
+import org.junit.After;
+import org.junit.Test;
+
+
+public class PerfTrackTest
+{
+   @After
+   public void cleanup()
+   {
+      PerfTrack.clear();
+      PerfTrack.setNanoTiming(false);
+      PerfTrack.setRecycling(false);
+      PerfTrack.setMaxNodes(10000);
+      PerfTrack.setMaxDepth(100);
+   }
+   
+   @Test
+   public void nanoTimingTest() throws Exception
+   {
+      PerfTrack.setNanoTiming(true);
+      PerfTrack.start("root", "root", 0);
+      PerfTrack.start("fast", "fast", 0);
+      PerfTrack.stop("fast");
+      Thread.sleep(2);
+      long et = PerfTrack.stop("root");
+      
+      assertTrue(et >= 2);
+      String s = PerfTrack.toString(0);
+      // sub-millisecond items are rendered with microsecond precision
+      assertTrue(s, s.matches("(?s)root [0-9]+\\.[0-9]{3}ms\n  fast 0\\.[0-9]{3}ms\n.*"));
+   }
+   
+   @Test
+   public void millisTimingTest() throws Exception
+   {
+      PerfTrack.start("root", "root", 0);
+      Thread.sleep(2);
+      PerfTrack.stop("root");
+      
+      String s = PerfTrack.toString(0);
+      assertTrue(s, s.matches("root [0-9]+ms\n"));
+   }
+   
+   @Test
+   public void statsTest() throws Exception
+   {
+      PerfTrackStats.reset();
+      for (int i = 0; i < 100; i++)
+      {
+         PerfTrack.start("statsRoot", "statsRoot", 0);
+         PerfTrack.start("statsChild", "statsChild", 0);
+         PerfTrack.stop("statsChild", "statsChild", i == 0 ? new RuntimeException() : null);
+         PerfTrack.stop("statsRoot");
+         PerfTrack.clear();
+      }
+      
+      PerfTrackStats.Stat child = PerfTrackStats.getStat("statsChild");
+      assertEquals(100, child.getCount());
+      assertEquals(1, child.getErrors());
+      assertEquals(100, PerfTrackStats.getStat("statsRoot").getCount());
+      assertTrue(child.getMinNanos() <= child.getP50Nanos());
+      assertTrue(child.getP50Nanos() <= child.getP999Nanos());
+      assertTrue(child.getP999Nanos() <= child.getMaxNanos());
+   }
+   
+   @Test
+   public void recyclingTest() throws Exception
+   {
+      PerfTrack.setRecycling(true);
+      String previous = null;
+      for (int i = 0; i < 3; i++)
+      {
+         PerfTrack.start("root", "root", 0);
+         PerfTrack.start("child1", "child1", 0);
+         PerfTrack.stop("child1");
+         PerfTrack.start("child2", "child2", 0);
+         PerfTrack.stop("child2");
+         PerfTrack.stop("root");
+         // a recycled tree must render exactly like a fresh one
+         String s = PerfTrack.toString(0).replaceAll("[0-9]+ms", "#ms");
+         if (previous != null) assertEquals(previous, s);
+         previous = s;
+         PerfTrack.clear();
+      }
+      assertEquals("root #ms\n  child1 #ms\n  child2 #ms\n  Other #ms\n", previous);
+   }
+   
+   @Test
+   public void callerTest() throws Exception
+   {
+      for (int i = 0; i < 2; i++)
+      {
+         PerfTrack.start();
+         PerfTrack.start("named");
+         PerfTrack.stop("named");
+         PerfTrack.stop();
+         assertTrue(PerfTrack.isCurrentRootAndComplete());
+         String s = PerfTrack.toString(0);
+         assertTrue(s, s.startsWith("PerfTrackTest.callerTest "));
+         PerfTrack.clear();
+      }
+   }
+   
+   @Test
+   public void scopedTest() throws Exception
+   {
+      // a finished tree that was never cleared
+      PerfTrack.start("stale", "stale", 0);
+      PerfTrack.stop("stale");
+      
+      String s = PerfTrack.call("scoped", 0, new Callable<String>() {
+         public String call() throws Exception {
+            PerfTrack.run("inner", 0, new Runnable() {
+               public void run() {
+                  PerfTrack.start("unstopped");
+               }
+            });
+            return PerfTrack.toString(0);
+         }
+      });
+      assertTrue(s, s.matches("(?s)scoped [0-9]+ms\n  inner [0-9]+ms\n    unstopped [0-9]+ms\n.*"));
+      // nothing is left on the thread
+      assertEquals("PerfTrack: no data?", PerfTrack.toString(0));
+      
+      try
+      {
+         PerfTrack.run("failing", 0, new Runnable() {
+            public void run() {
+               throw new IllegalStateException();
+            }
+         });
+      }
+      catch (IllegalStateException ex)
+      {
+         // expected
+      }
+      assertEquals("PerfTrack: no data?", PerfTrack.toString(0));
+      assertEquals(1, PerfTrackStats.getStat("failing").getErrors());
+   }   
+   @Test
+   public void renderTest() throws Exception
+   {
+      PerfTrack.start("root", "root", 0);
+      fast("a");
+      fast("b");
+      fast("a");
+      PerfTrack.start("slow", "slow", 0);
+      fast("c");
+      fast("c");
+      PerfTrack.stop("slow");
+      fast("a");
+      PerfTrack.start("failed", "failed", 1000);
+      PerfTrack.stop("failed", "failed", new IllegalStateException());
+      PerfTrack.stop("root");
+      PerfTrack.Item root = PerfTrack.detach();
+      
+      // under threshold calls are shown alone, or grouped when repeated
+      assertEquals("root #ms\n"+
+                   "  b #ms\n"+
+                   "  slow #ms\n"+
+                   "    * 2 calls to c #ms\n"+
+                   "    Other #ms\n"+
+                   "  failed threw [IllegalStateException] #ms\n"+
+                   "  * 3 calls to a #ms\n"+
+                   "  Other #ms\n",
+                   PerfTrack.toString(root, 0).replaceAll("-?[0-9]+ms", "#ms"));
+      
+      StringWriter writer = new StringWriter();
+      PerfTrack.write(root, 1, writer);
+      assertTrue(writer.toString().startsWith("  root "));
+      assertTrue(writer.toString().contains("\n      * 2 calls to c "));
+      assertEquals(PerfTrack.toString(root, 1), writer.toString());
+   }
+   
+   @Test
+   public void throwableNameTest() throws Exception
+   {
+      PerfTrack.start("root", "root", 0);
+      PerfTrack.start("nested", "nested", 0);
+      PerfTrack.stop("nested", "nested", new Nested());
+      PerfTrack.start("anonymous", "anonymous", 0);
+      PerfTrack.stop("anonymous", "anonymous", new RuntimeException() {});
+      PerfTrack.stop("root");
+      PerfTrack.Item root = PerfTrack.detach();
+      
+      // as Class.getSimpleName()
+      assertEquals("root #ms\n"+
+                   "  nested threw [Nested] #ms\n"+
+                   "  anonymous threw [] #ms\n"+
+                   "  Other #ms\n",
+                   PerfTrack.toString(root, 0).replaceAll("-?[0-9]+ms", "#ms"));
+   }
+   
+   static class Nested extends RuntimeException
+   {
+      private static final long serialVersionUID = 1L;
+   }
+   
+   static void fast(String name)
+   {
+      PerfTrack.start(name, name, 1000);
+      PerfTrack.stop(name);
+   }
+   
+   @Test
+   public void limitsTest() throws Exception
+   {
+      PerfTrack.setMaxNodes(10);
+      PerfTrack.start("root", "root", 0);
+      for (int i = 0; i < 1000; i++)
+      {
+         PerfTrack.start("loop", "loop", 0);
+         PerfTrack.start("inner", "inner", 0);
+         PerfTrack.stop("inner");
+         PerfTrack.stop("loop");
+      }
+      PerfTrack.stop("root");
+      
+      // 9 items of each before the limit, then one merged item for the rest
+      PerfTrack.Item root = PerfTrack.detach();
+      assertEquals(6, root.getChildren().size());
+      PerfTrack.Item merged = root.getChildren().get(5);
+      assertTrue(merged.isMerged());
+      assertEquals(995, merged.getCount());
+      assertTrue(merged.getMinNanos() <= merged.getMaxNanos());
+      assertEquals(1, merged.getChildren().size());
+      assertEquals(995, merged.getChildren().get(0).getCount());
+      assertTrue(PerfTrack.toString(root, 0).contains("loop [995 calls, min "));
+      
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      PerfTrackEncoder encoder = new PerfTrackEncoder(bytes);
+      encoder.write(root);
+      encoder.close();
+      PerfTrack.Item decoded = new PerfTrackDecoder(new ByteArrayInputStream(bytes.toByteArray())).read();
+      assertEquals(PerfTrack.toString(root, 0), PerfTrack.toString(decoded, 0));
+      
+      // recursion stops adding items at maxDepth, and still unwinds
+      PerfTrack.setMaxDepth(3);
+      recurse(20);
+      assertTrue(PerfTrack.isCurrentRootAndComplete());
+      PerfTrack.Item item = PerfTrack.detach();
+      int depth = 0;
+      while (item.hasChildren())
+      {
+         assertEquals(1, item.getChildren().size());
+         item = item.getChildren().get(0);
+         depth++;
+      }
+      assertEquals(3, depth);
+      assertTrue(item.isMerged());
+      assertEquals(1, item.getCount());
+   }
+   
+   static void recurse(int n)
+   {
+      PerfTrack.start("recurse", "recurse", 0);
+      if (n > 0)
+         recurse(n-1);
+      PerfTrack.stop("recurse");
+   }
+}
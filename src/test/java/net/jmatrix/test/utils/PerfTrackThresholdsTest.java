@@ -0,0 +1,36 @@
+package net.jmatrix.test.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import net.jmatrix.utils.PerfTrackThresholds;
+
+import org.junit.After;
+import org.junit.Test;
+
+
+public class PerfTrackThresholdsTest
+{
+   @After
+   public void tearDown()
+   {
+      PerfTrackThresholds.clear();
+   }
+   
+   @Test
+   public void overrideTest()
+   {
+      assertEquals(20, PerfTrackThresholds.resolve("Service.call", 20));
+      
+      PerfTrackThresholds.set("Service.call", 5);
+      PerfTrackThresholds.set("Service.off", -1);
+      assertEquals(5, PerfTrackThresholds.resolve("Service.call", 20));
+      assertEquals(-1, PerfTrackThresholds.resolve("Service.off", 20));
+      assertEquals(20, PerfTrackThresholds.resolve("Service.other", 20));
+      assertEquals("{Service.call=5, Service.off=-1}", PerfTrackThresholds.getOverrides().toString());
+      
+      PerfTrackThresholds.remove("Service.call");
+      assertNull(PerfTrackThresholds.get("Service.call"));
+      assertEquals(20, PerfTrackThresholds.resolve("Service.call", 20));
+   }
+}
@@ -0,0 +1,120 @@
+package net.jmatrix.test.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+
+import net.jmatrix.utils.PerfTrack;
+import net.jmatrix.utils.PerfTrackTraceWriter;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+
+public class PerfTrackTraceWriterTest
+{
+   ObjectMapper mapper = new ObjectMapper();
+
+   @After
+   public void cleanup()
+   {
+      PerfTrack.clear();
+   }
+
+   @Test
+   public void chromeTest() throws Exception
+   {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      PerfTrackTraceWriter writer = new PerfTrackTraceWriter(out, PerfTrackTraceWriter.Format.CHROME);
+      PerfTrack.Item root = tree();
+      writer.export(root);
+      writer.export(tree());
+      writer.close();
+
+      JsonNode events = mapper.readTree(out.toByteArray());
+      // a thread_name and two items per tree
+      assertEquals(6, events.size());
+      assertEquals("M", events.get(0).get("ph").asText());
+      assertEquals("request", events.get(0).get("args").get("name").asText());
+
+      JsonNode request = events.get(1);
+      JsonNode query = events.get(2);
+      assertEquals("X", request.get("ph").asText());
+      assertEquals("request", request.get("name").asText());
+      assertEquals(root.getStartMillis()*1000, request.get("ts").asLong());
+      assertEquals(root.getElapsedNanos()/1000, request.get("dur").asLong());
+      assertEquals("query db", query.get("name").asText());
+      assertEquals("query", query.get("args").get("id").asText());
+      assertEquals("java.lang.IllegalStateException", query.get("args").get("throwable").asText());
+      // the child lies within its parent on the same row
+      assertTrue(query.get("ts").asLong() >= request.get("ts").asLong());
+      assertTrue(query.get("ts").asLong()+query.get("dur").asLong() <=
+                 request.get("ts").asLong()+request.get("dur").asLong());
+      assertEquals(request.get("tid").asInt(), query.get("tid").asInt());
+      assertEquals(2, events.get(4).get("tid").asInt());
+   }
+
+   @Test
+   public void otlpTest() throws Exception
+   {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      PerfTrackTraceWriter writer = new PerfTrackTraceWriter(out, PerfTrackTraceWriter.Format.OTLP, "orders");
+      PerfTrack.Item root = tree();
+      writer.export(root);
+      writer.export(tree());
+      writer.close();
+
+      String lines[] = new String(out.toByteArray(), "UTF-8").split("\n");
+      assertEquals(2, lines.length);
+
+      JsonNode resourceSpans = mapper.readTree(lines[0]).get("resourceSpans").get(0);
+      JsonNode serviceName = resourceSpans.get("resource").get("attributes").get(0);
+      assertEquals("service.name", serviceName.get("key").asText());
+      assertEquals("orders", serviceName.get("value").get("stringValue").asText());
+
+      JsonNode spans = resourceSpans.get("scopeSpans").get(0).get("spans");
+      assertEquals(2, spans.size());
+      JsonNode request = spans.get(0);
+      JsonNode query = spans.get(1);
+      assertEquals(32, request.get("traceId").asText().length());
+      assertEquals(16, request.get("spanId").asText().length());
+      assertEquals(request.get("traceId").asText(), query.get("traceId").asText());
+      assertFalse(request.has("parentSpanId"));
+      assertEquals(request.get("spanId").asText(), query.get("parentSpanId").asText());
+
+      long start = Long.parseLong(request.get("startTimeUnixNano").asText());
+      long end = Long.parseLong(request.get("endTimeUnixNano").asText());
+      assertEquals(root.getStartMillis()*1000000L, start);
+      assertEquals(root.getElapsedNanos(), end-start);
+      assertFalse(request.has("status"));
+
+      assertEquals("query db", query.get("name").asText());
+      assertEquals(2, query.get("status").get("code").asInt());
+      JsonNode exception = query.get("events").get(0);
+      assertEquals("exception", exception.get("name").asText());
+      assertEquals("java.lang.IllegalStateException",
+                   exception.get("attributes").get(0).get("value").get("stringValue").asText());
+      assertEquals("no connection",
+                   exception.get("attributes").get(1).get("value").get("stringValue").asText());
+
+      JsonNode second = mapper.readTree(lines[1]).get("resourceSpans").get(0)
+         .get("scopeSpans").get(0).get("spans").get(0);
+      assertFalse(request.get("traceId").asText().equals(second.get("traceId").asText()));
+   }
+
+   static PerfTrack.Item tree() throws Exception
+   {
+      PerfTrack.start("request", "request", 0);
+      Thread.sleep(1);
+      PerfTrack.start("query db", "query", 0);
+      Thread.sleep(2);
+      PerfTrack.stop("query db", "query", new IllegalStateException("no connection"));
+      PerfTrack.stop("request");
+      return PerfTrack.detach();
+   }
+}